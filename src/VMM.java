@@ -15,12 +15,7 @@
     along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 
 import com.cycling74.max.*;
@@ -42,11 +37,12 @@ import com.cycling74.max.*;
  * - one will have to show how to do a straightforward Markov model
  */
 
-public class VMM extends MaxObject {
+public class VMM extends VMM_Object {
 
 	private ArrayList<ArrayList<Integer>> raw = new ArrayList<ArrayList<Integer>>();
 	private ArrayList<ArrayList<Integer>> reduction = new ArrayList<ArrayList<Integer>>();
 	private ArrayList<ArrayList<Integer>> history = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<ArrayList<ArrayList<Integer>>> voice_histories = new ArrayList<ArrayList<ArrayList<Integer>>>();
 	private VmmTree model;
 
 	/**
@@ -55,10 +51,10 @@ public class VMM extends MaxObject {
 	 */
 	public VMM(Atom[] args) {
 		declareInlets(new int[]{DataTypes.ALL, DataTypes.ALL, DataTypes.ALL});
-		declareOutlets(new int[]{DataTypes.ALL});
+		declareOutlets(new int[]{DataTypes.ALL, DataTypes.ALL});
 		createInfoOutlet(false);
 		setInletAssist(new String[] {"Various Messages, History Data", "Reduction Data", "Raw Data"});
-		setOutletAssist(new String[] {"Generated Output"});
+		setOutletAssist(new String[] {"Generated Output", "File Status (save, load, export)"});
 		int model_order = 10;
 		for(int i = 0; i < args.length; i++) {
 			if(args[i].isInt())
@@ -67,71 +63,277 @@ public class VMM extends MaxObject {
 		this.model = new VmmTree(model_order);
 	}
 
+	protected int getModelOrder() {
+		return this.model.getOrder();
+	}
+
+	protected boolean isModelEmpty() {
+		return this.model.getSize() == 0;
+	}
+
+	protected ArrayList<Integer> generateFromModel(int gen_order) {
+		return this.model.generate(this.history, gen_order);
+	}
+
+	protected ArrayList<Integer> generateStartFromModel() {
+		return this.model.gen_start();
+	}
+
+	protected VmmTree getPrintTree() {
+		return this.model;
+	}
+
+	protected Serializable snapshotModel() {
+		return this.model.snapshot();
+	}
+
+	protected String installModel(Object loaded) {
+		if (!(loaded instanceof VmmTree)) {
+			return "Not a VMM model (use VMM_Viewpoints for multi-viewpoint models)";
+		}
+		this.model = (VmmTree)loaded;
+		return null;
+	}
+
 	/**
-	 * Respond to the bang message.
-	 * Bang in the left inlet generates output.
+	 * Respond to the 'topk' message, followed by k and optionally the maximum order.
+	 * Send out the k most probable next outputs given the history, most probable first,
+	 * each as a 'topk' message: the probability followed by the output.
+	 * @param args
 	 */
-	public void bang() {
+	public void topk(Atom[] args) {
 		int inlet_num = getInlet();
-		if (inlet_num == 0) {
-			this.generate_output(this.model.getOrder());
+		if (inlet_num != 0) {
+			return;
+		}
+		if (args.length < 1 || !args[0].isInt() || args[0].getInt() < 1) {
+			post("Message 'topk' must be followed by the number of outputs (at least 1).");
+			return;
+		}
+		int gen_order = this.getOrderArg(args, 1);
+		if (gen_order < 0) {
+			return;
+		}
+		if (this.model.getSize() == 0) {
+			post("Cannot generate: VMM is empty.");
+			return;
+		}
+		for (VmmCandidate c : this.model.top_k(this.history, args[0].getInt(), gen_order)) {
+			ArrayList<Integer> gen = c.getOutput(0);
+			Atom[] out_atoms = new Atom[gen.size() + 1];
+			out_atoms[0] = Atom.newAtom((float)c.getProbability());
+			for (int i = 0; i < gen.size(); i++) {
+				out_atoms[i+1] = Atom.newAtom(gen.get(i));
+			}
+			outlet(0, "topk", out_atoms);
 		}
 	}
 
 	/**
-	 * Respond to the 'gen' message which should be followed by an int.
-	 * This generates output using the int as the maximum order.
-	 * @param gen_order
+	 * Respond to the 'beam' message, followed by the number of steps, the beam width
+	 * and optionally the maximum order.
+	 * Send out the most probable continuations of the history, most probable first,
+	 * each as a 'beam' message: the probability followed by, for each step, the length
+	 * of the output and the output.
+	 * @param args
 	 */
-	public void gen(int gen_order) {
+	public void beam(Atom[] args) {
 		int inlet_num = getInlet();
-		if (inlet_num == 0) {
-			if (gen_order < 0) {
-				post("Cannot generate with order less than 0!");
+		if (inlet_num != 0) {
+			return;
+		}
+		if (args.length < 2 || !args[0].isInt() || !args[1].isInt() || args[0].getInt() < 1 || args[1].getInt() < 1) {
+			post("Message 'beam' must be followed by the number of steps and the beam width (both at least 1).");
+			return;
+		}
+		int gen_order = this.getOrderArg(args, 2);
+		if (gen_order < 0) {
+			return;
+		}
+		if (this.model.getSize() == 0) {
+			post("Cannot generate: VMM is empty.");
+			return;
+		}
+		ArrayList<VmmCandidate> beams = this.model.beam_search(this.history, args[0].getInt(), args[1].getInt(), gen_order);
+		if (beams.size() == 0) {
+			post("No continuations of that length found (models saved by older versions cannot be searched beyond one step).");
+		}
+		for (VmmCandidate c : beams) {
+			int num_atoms = 1;
+			for (int step = 0; step < c.getLength(); step++) {
+				num_atoms += c.getOutput(step).size() + 1;
 			}
-			else if (gen_order > this.model.getOrder()) {
-				post("Cannot generate with order higher than model order (model order is " + this.model.getOrder() + ")");
+			Atom[] out_atoms = new Atom[num_atoms];
+			out_atoms[0] = Atom.newAtom((float)c.getProbability());
+			int a = 1;
+			for (int step = 0; step < c.getLength(); step++) {
+				ArrayList<Integer> gen = c.getOutput(step);
+				out_atoms[a++] = Atom.newAtom(gen.size());
+				for (int i = 0; i < gen.size(); i++) {
+					out_atoms[a++] = Atom.newAtom(gen.get(i));
+				}
 			}
-			else {
-				this.generate_output(gen_order);
+			outlet(0, "beam", out_atoms);
+		}
+	}
+
+	/**
+	 * Read an optional maximum order from a message's arguments.
+	 * @return the order (the model order if it is absent), or -1 if it is invalid
+	 */
+	private int getOrderArg(Atom[] args, int index) {
+		if (args.length <= index || !args[index].isInt()) {
+			return this.model.getOrder();
+		}
+		if (args[index].getInt() < 0) {
+			post("Cannot generate with order less than 0!");
+			return -1;
+		}
+		return args[index].getInt();
+	}
+
+	/**
+	 * Respond to the 'voice' message: a voice number followed by a list,
+	 * which is added to the history of that voice.
+	 * @param args
+	 */
+	public void voice(Atom[] args) {
+		int inlet_num = getInlet();
+		if (inlet_num != 0) {
+			return;
+		}
+		if (args.length < 2 || !args[0].isInt() || args[0].getInt() < 0) {
+			post("Message 'voice' must be followed by a voice number and a list.");
+			return;
+		}
+		ArrayList<Integer> new_data = new ArrayList<Integer>();
+		for (int i = 1; i < args.length; i++) {
+			if (!args[i].isInt()) {
+				error("VMM: lists must contain integers only. Received: " + args[i].toString());
+				return;
 			}
+			new_data.add(args[i].getInt());
+		}
+		this.setNumVoices(Math.max(this.voice_histories.size(), args[0].getInt() + 1));
+		this.voice_histories.get(args[0].getInt()).add(new_data);
+	}
+
+	/**
+	 * Respond to the 'voices' message.
+	 * Set the number of voices generated by 'genpoly'.
+	 * @param num_voices
+	 */
+	public void voices(int num_voices) {
+		if (num_voices < 0) {
+			post("Number of voices cannot be less than 0.");
+		} else {
+			this.setNumVoices(num_voices);
 		}
 	}
 
 	/**
-	 * Respond to the genstart message by outputting a random sequence start.
+	 * Respond to the 'voicelists' message: one length-prefixed list per voice, in voice order,
+	 * e.g. 'voicelists 1 60 1 64 0 1 67' adds [60] to voice 0, [64] to voice 1, nothing to
+	 * voice 2 and [67] to voice 3. This updates every voice history with one message.
+	 * Voices are added if there are more lists than voices.
+	 * @param args
 	 */
-	public void genstart() {
+	public void voicelists(Atom[] args) {
 		int inlet_num = getInlet();
-		if (inlet_num == 0) {
-			if (this.model.getSize() > 0) {
-				ArrayList<Integer> gen = this.model.gen_start();
-				Atom[] out_atoms = new Atom[gen.size()];
-				for (int i = 0; i < gen.size(); i++) {
-					out_atoms[i] = Atom.newAtom(gen.get(i));
+		if (inlet_num != 0) {
+			return;
+		}
+		int[] data = this.toInts(args, "voicelists");
+		if (data == null) {
+			return;
+		}
+
+		// Check the whole message before changing any history
+		int num_lists = 0;
+		int a = 0;
+		while (a < data.length) {
+			if (data[a] < 0 || a + 1 + data[a] > data.length) {
+				post("Message 'voicelists' must be a length followed by that many values, for each voice.");
+				return;
+			}
+			a += data[a] + 1;
+			num_lists++;
+		}
+
+		this.setNumVoices(Math.max(this.voice_histories.size(), num_lists));
+		a = 0;
+		for (int v = 0; v < num_lists; v++) {
+			int len = data[a++];
+			if (len > 0) {
+				ArrayList<Integer> new_data = new ArrayList<Integer>(len);
+				for (int i = 0; i < len; i++) {
+					new_data.add(data[a++]);
 				}
-				outlet(0, out_atoms);
-			} else {
-				post("Cannot generate: VMM is empty.");
+				this.voice_histories.get(v).add(new_data);
 			}
 		}
 	}
 
+	private void setNumVoices(int num_voices) {
+		while (this.voice_histories.size() < num_voices) {
+			this.voice_histories.add(new ArrayList<ArrayList<Integer>>());
+		}
+		while (this.voice_histories.size() > num_voices) {
+			this.voice_histories.remove(this.voice_histories.size() - 1);
+		}
+	}
+
 	/**
-	 * Generate output with a given order (if greater than model order, model order will be used).
-	 * @param gen_order
+	 * Respond to the 'genpoly' message, optionally followed by the maximum order.
+	 * Generate the next output of every voice in one call and send them out as one
+	 * 'poly' message: for each voice in turn, the length of its output followed by the output.
+	 * A voice the model cannot continue is sent with length 0.
+	 * @param args
 	 */
-	private void generate_output(int gen_order) {
-		ArrayList<Integer> gen = new ArrayList<Integer>();
-		if (model.getSize() > 0) {
-			gen = model.generate(this.history);
-			Atom[] out_atoms = new Atom[gen.size()];
-			for (int i = 0; i < gen.size(); i++) {
-				out_atoms[i] = Atom.newAtom(gen.get(i));
-			}
-			outlet(0, out_atoms);
-		} else {
+	public void genpoly(Atom[] args) {
+		int inlet_num = getInlet();
+		if (inlet_num != 0) {
+			return;
+		}
+		int gen_order = this.getOrderArg(args, 0);
+		if (gen_order < 0) {
+			return;
+		}
+		if (this.model.getSize() == 0) {
 			post("Cannot generate: VMM is empty.");
+			return;
+		}
+		if (this.voice_histories.size() == 0) {
+			post("Cannot generate: no voices (use 'voices' or 'voice').");
+			return;
+		}
+		ArrayList<ArrayList<Integer>> gen = this.model.generate_poly(this.voice_histories, gen_order);
+		int num_atoms = 0;
+		for (int v = 0; v < gen.size(); v++) {
+			if (gen.get(v) == null) {
+				post("Cannot generate voice " + v + ": VMM has no continuations for its history.");
+				gen.set(v, new ArrayList<Integer>());
+			}
+			num_atoms += gen.get(v).size() + 1;
+		}
+		Atom[] out_atoms = new Atom[num_atoms];
+		int a = 0;
+		for (ArrayList<Integer> g : gen) {
+			out_atoms[a++] = Atom.newAtom(g.size());
+			for (int i = 0; i < g.size(); i++) {
+				out_atoms[a++] = Atom.newAtom(g.get(i));
+			}
+		}
+		outlet(0, "poly", out_atoms);
+	}
+
+	/**
+	 * Respond to the 'clearvoices' message.
+	 * Clear the history of every voice (the number of voices is kept).
+	 */
+	public void clearvoices() {
+		for (ArrayList<ArrayList<Integer>> h : this.voice_histories) {
+			h.clear();
 		}
 	}
 
@@ -223,6 +425,7 @@ public class VMM extends MaxObject {
 				post("Cannot learn: reduction list and raw list have different lengths.");
 			} else if (reduction.size() > 0 && raw.size() > 0) {
 				this.model.learn(reduction, raw);
+				this.modelChanged();
 				this.reduction.clear();
 				this.raw.clear();
 			} else {
@@ -232,13 +435,34 @@ public class VMM extends MaxObject {
 	}
 
 	/**
-	 * Respond to the 'printtree' message.
-	 * Print the VMM tree to the Max window.
+	 * Respond to the 'learnseq' message in the leftmost inlet.
+	 * Learn a whole sequence sent as one list: the reduction length and raw length of each event,
+	 * followed by the events themselves, each one being its reduction values then its raw values.
+	 * e.g. 'learnseq 1 2 60 60 100 64 64 110 67 67 105'
+	 * @param args
 	 */
-	public void printmodel() {
-		String[] model_strings = model.toString().split("\n");
-		for (int i = 0; i < model_strings.length; i++) {
-			post(model_strings[i]);
+	public void learnseq(Atom[] args) {
+		int inlet_num = getInlet();
+		if (inlet_num != 0) {
+			return;
+		}
+		int[] data = this.toInts(args, "learnseq");
+		if (data == null) {
+			return;
+		}
+		if (data.length < 2 || data[0] < 1 || data[1] < 1) {
+			post("Message 'learnseq' must start with the reduction length and the raw length (both at least 1).");
+			return;
+		}
+		int stride = data[0] + data[1];
+		int num_events = (data.length - 2) / stride;
+		if ((data.length - 2) % stride != 0) {
+			post("Cannot learn: learnseq data is not a whole number of events of length " + stride + ".");
+		} else if (num_events == 0) {
+			post("Cannot learn: no input.");
+		} else {
+			this.model.learn(data, 2, num_events, data[0], data[1]);
+			this.modelChanged();
 		}
 	}
 
@@ -278,9 +502,8 @@ public class VMM extends MaxObject {
 	 * Clear everything.
 	 */
 	public void clearall() {
-		this.clearmodel();
-		this.cleardata();
-		this.clearhistory();
+		super.clearall();
+		this.clearvoices();
 	}
 
 	/**
@@ -289,68 +512,49 @@ public class VMM extends MaxObject {
 	 */
 	public void clearmodel() {
 		int model_order = this.model.getOrder();
-		this.model = new VmmTree(model_order);
+		VmmTree empty = new VmmTree(model_order);
+		if (this.model.isCanonical()) {
+			empty.setCanonical(this.model.getCanonicalReductionIndex(), this.model.getCanonicalRawIndex(), this.model.getCanonicalModulus());
+		}
+		this.model = empty;
+		this.modelChanged();
 	}
 
 	/**
-	 * Respond to the 'save' message.
-	 * Save the VMM to a file.
-	 * @param filename
+	 * Respond to the 'canon' message.
+	 * 'canon <reduction index> <raw index> [modulus]' makes the model store its contexts relative to
+	 * the value at the reduction index of the most recent reduction (e.g. the pitch), so that
+	 * transpositions of the same figure are learnt together. The value at the raw index of each output
+	 * is transposed back when generating (use -1 if no raw value should move). A modulus (e.g. 12 for
+	 * pitch classes) is applied to the relative reduction values.
+	 * 'canon off' goes back to absolute contexts.
+	 * The model must be empty, so send 'clearmodel' first.
+	 * @param args
 	 */
-	public void save(Atom[] filename) {
-		if (!filename[0].isString()) {
-			post("Message 'save' must be followed by file name.");
+	public void canon(Atom[] args) {
+		int inlet_num = getInlet();
+		if (inlet_num != 0) {
 			return;
 		}
-		String f = filename[0].getString();
-		try {
-			File file = new File(f);
-			FileOutputStream fileOutputStream = new FileOutputStream(file);
-			ObjectOutputStream outputStream = new ObjectOutputStream(fileOutputStream);
-			outputStream.writeObject(this.model);
-			outputStream.close();
-		} catch (IOException e) {
-			post("Save model failed with filename: " + f);
-			post("Exception thrown:");
-			post(e.getMessage());
+		if (this.model.getSize() > 0) {
+			post("Cannot change canonical contexts: VMM is not empty (use 'clearmodel' first).");
+			return;
 		}
-	}
-
-	/**
-	 * Respond to the 'load' message.
-	 * Load the VMM from a file.
-	 * @param filename
-	 */
-	public void load(Atom[] filename) {
-		if (!filename[0].isString()) {
-			post("Message 'load' must be followed by file name.");
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			this.model = new VmmTree(this.model.getOrder());
+			this.modelChanged();
 			return;
 		}
-		int order = this.model.getOrder();
-		String f = filename[0].getString();
-		try {
-			FileInputStream fis = new FileInputStream(f);
-			ObjectInputStream in = new ObjectInputStream(fis);
-			VmmTree temp_model = (VmmTree)in.readObject();
-			in.close();
-			this.model = temp_model;
-			post("Model loaded from " + f);
-			this.printmodelsummary();
-		} catch (IOException e) {
-			this.model = new VmmTree(order);
-			this.clearall();
-			post("Load model failed with filename: " + f);
-			post("Exception thrown:");
-			post(e.getMessage());
-			post("Current model has been reset");
-		} catch (ClassNotFoundException e) {
-			this.model = new VmmTree(order);
-			this.clearall();
-			post("Load model failed with filename: " + f);
-			post("Exception thrown:");
-			post(e.getMessage());
-			post("Current model has been reset");
+		if (args.length < 2 || !args[0].isInt() || !args[1].isInt() || args[0].getInt() < 0
+				|| (args.length > 2 && (!args[2].isInt() || args[2].getInt() < 0))) {
+			post("Message 'canon' must be followed by a reduction index and a raw index (and optionally a modulus), or 'off'.");
+			return;
 		}
+		int modulus = (args.length > 2) ? args[2].getInt() : 0;
+		VmmTree empty = new VmmTree(this.model.getOrder());
+		empty.setCanonical(args[0].getInt(), args[1].getInt(), modulus);
+		this.model = empty;
+		this.modelChanged();
 	}
 
 	/**
@@ -360,5 +564,10 @@ public class VMM extends MaxObject {
 		post("VMM Order: " + this.model.getOrder());
 		post("Number of Nodes: " + this.model.getSize());
 		post("Number of possible outputs: " + this.model.getNumRawOuts());
+		if (this.model.isCanonical()) {
+			post("Canonical contexts: reduction index " + this.model.getCanonicalReductionIndex()
+					+ ", raw index " + this.model.getCanonicalRawIndex()
+					+ ", modulus " + this.model.getCanonicalModulus());
+		}
 	}
 }
@@ -0,0 +1,500 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.cycling74.max.*;
+
+/*
+ * Messages shared by the VMM and VMM_Viewpoints Max objects: generation (bang, gen, genstart),
+ * clearing, printing, and asynchronous exporting, saving and loading.
+ *
+ * Subclasses hold the model and the data received in their inlets, and must declare
+ * two outlets: generated output and file status (save, load and export).
+ */
+public abstract class VMM_Object extends MaxObject {
+
+	private int print_page_size = 100;
+	private int print_depth = 0;
+	private ExecutorService file_executor;
+	private int model_changes = 0;
+
+	/**
+	 * @return the maximum order of the model
+	 */
+	protected abstract int getModelOrder();
+
+	/**
+	 * @return true if the model has not learnt anything
+	 */
+	protected abstract boolean isModelEmpty();
+
+	/**
+	 * Draw a single output from the model using the current history.
+	 * @param gen_order
+	 */
+	protected abstract ArrayList<Integer> generateFromModel(int gen_order);
+
+	/**
+	 * Draw a random sequence start from the model.
+	 */
+	protected abstract ArrayList<Integer> generateStartFromModel();
+
+	/**
+	 * @return the tree used by 'printmodel', 'printraw' and 'export'
+	 */
+	protected abstract VmmTree getPrintTree();
+
+	/**
+	 * @return a copy of the model that can be saved on another thread
+	 */
+	protected abstract Serializable snapshotModel();
+
+	/**
+	 * Replace the model with one that has been loaded.
+	 * @param loaded
+	 * @return null if the model was replaced, otherwise the reason it could not be
+	 */
+	protected abstract String installModel(Object loaded);
+
+	/**
+	 * Respond to the 'clearmodel' message.
+	 */
+	public abstract void clearmodel();
+
+	/**
+	 * Respond to the 'cleardata' message.
+	 */
+	public abstract void cleardata();
+
+	/**
+	 * Respond to the 'clearhistory' message.
+	 */
+	public abstract void clearhistory();
+
+	/**
+	 * Respond to the 'printmodelsummary' message.
+	 */
+	public abstract void printmodelsummary();
+
+	/**
+	 * Subclasses call this whenever the model changes (learning, clearing or replacing it),
+	 * so that a load can tell whether it is about to discard those changes.
+	 */
+	protected void modelChanged() {
+		this.model_changes++;
+	}
+
+	/**
+	 * Respond to the bang message.
+	 * Bang in the left inlet generates output.
+	 */
+	public void bang() {
+		int inlet_num = getInlet();
+		if (inlet_num == 0) {
+			this.generate_output(this.getModelOrder());
+		}
+	}
+
+	/**
+	 * Respond to the 'gen' message which should be followed by an int.
+	 * This generates output using the int as the maximum order.
+	 * @param gen_order
+	 */
+	public void gen(int gen_order) {
+		int inlet_num = getInlet();
+		if (inlet_num == 0) {
+			if (gen_order < 0) {
+				post("Cannot generate with order less than 0!");
+			}
+			else if (gen_order > this.getModelOrder()) {
+				post("Cannot generate with order higher than model order (model order is " + this.getModelOrder() + ")");
+			}
+			else {
+				this.generate_output(gen_order);
+			}
+		}
+	}
+
+	/**
+	 * Respond to the genstart message by outputting a random sequence start.
+	 */
+	public void genstart() {
+		int inlet_num = getInlet();
+		if (inlet_num == 0) {
+			if (!this.isModelEmpty()) {
+				this.output(this.generateStartFromModel());
+			} else {
+				post("Cannot generate: VMM is empty.");
+			}
+		}
+	}
+
+	/**
+	 * Generate output with a given order (if greater than model order, model order will be used).
+	 * @param gen_order
+	 */
+	private void generate_output(int gen_order) {
+		if (!this.isModelEmpty()) {
+			this.output(this.generateFromModel(gen_order));
+		} else {
+			post("Cannot generate: VMM is empty.");
+		}
+	}
+
+	/**
+	 * Send a list out of the left outlet.
+	 * @param gen
+	 */
+	protected void output(ArrayList<Integer> gen) {
+		Atom[] out_atoms = new Atom[gen.size()];
+		for (int i = 0; i < gen.size(); i++) {
+			out_atoms[i] = Atom.newAtom(gen.get(i));
+		}
+		outlet(0, out_atoms);
+	}
+
+	/**
+	 * Convert the arguments of a message that must contain integers only.
+	 * @param args
+	 * @param message name of the message, for the error
+	 * @return the integers, or null (after posting an error) if there is anything else
+	 */
+	protected int[] toInts(Atom[] args, String message) {
+		int[] data = new int[args.length];
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].isInt()) {
+				error("VMM: " + message + " must contain integers only. Received: " + args[i].toString());
+				return null;
+			}
+			data[i] = args[i].getInt();
+		}
+		return data;
+	}
+
+	/**
+	 * Respond to the 'clearall' message.
+	 * Clear everything.
+	 */
+	public void clearall() {
+		this.clearmodel();
+		this.cleardata();
+		this.clearhistory();
+	}
+
+	/**
+	 * Respond to the 'printmodel' message, optionally followed by a page number.
+	 * Print one page of the VMM tree to the Max window.
+	 * @param args
+	 */
+	public void printmodel(Atom[] args) {
+		int page = this.getPage(args);
+		VmmTree tree = this.getPrintTree();
+		if (tree.getSize() == 0) {
+			post("Empty VMM tree");
+			return;
+		}
+		PostWriter out = new PostWriter();
+		try {
+			out.write("Raw outputs: " + tree.getNumRawOuts() + " (use 'printraw' to list them)\n");
+			out.write("Tree (" + tree.getSize() + " nodes), page " + page + ":\n");
+			boolean more = tree.writeTree(out, this.print_depth, page * this.print_page_size, this.print_page_size);
+			if (more) {
+				out.write("More nodes follow: use 'printmodel " + (page + 1) + "'\n");
+			}
+			out.flush();
+		} catch (IOException e) {
+			post("Print model failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Respond to the 'printraw' message, optionally followed by a page number.
+	 * Print one page of the raw outputs to the Max window.
+	 * @param args
+	 */
+	public void printraw(Atom[] args) {
+		int page = this.getPage(args);
+		VmmTree tree = this.getPrintTree();
+		PostWriter out = new PostWriter();
+		try {
+			out.write("Raw (" + tree.getNumRawOuts() + " raw outputs), page " + page + ":\n");
+			boolean more = tree.writeRawOuts(out, page * this.print_page_size, this.print_page_size);
+			if (more) {
+				out.write("More raw outputs follow: use 'printraw " + (page + 1) + "'\n");
+			}
+			out.flush();
+		} catch (IOException e) {
+			post("Print raw outputs failed: " + e.getMessage());
+		}
+	}
+
+	private int getPage(Atom[] args) {
+		if (args.length > 0 && args[0].isInt() && args[0].getInt() > 0) {
+			return args[0].getInt();
+		}
+		return 0;
+	}
+
+	/**
+	 * Respond to the 'printpagesize' message.
+	 * Set the number of lines printed per page by 'printmodel' and 'printraw'.
+	 * @param size
+	 */
+	public void printpagesize(int size) {
+		if (size < 1) {
+			post("Page size must be at least 1.");
+		} else {
+			this.print_page_size = size;
+		}
+	}
+
+	/**
+	 * Respond to the 'printdepth' message.
+	 * Set the maximum tree depth used by 'printmodel' and 'export' (0 for no limit).
+	 * @param depth
+	 */
+	public void printdepth(int depth) {
+		if (depth < 0) {
+			post("Print depth cannot be less than 0.");
+		} else {
+			this.print_depth = depth;
+		}
+	}
+
+	/**
+	 * Respond to the 'export' message, which should be followed by a format (text, dot or json) and a file name.
+	 * Stream a snapshot of the VMM to a file on a background thread, so the patch is not held up
+	 * by large models. 'exported <filename>' or 'exportfailed <filename>' is sent from the status
+	 * outlet when it is done.
+	 * @param args
+	 */
+	public void export(Atom[] args) {
+		if (args.length < 2 || !args[0].isString() || !args[1].isString()) {
+			post("Message 'export' must be followed by a format (text, dot or json) and a file name.");
+			return;
+		}
+		final String format = args[0].getString();
+		final String f = args[1].getString();
+		if (!format.equals("text") && !format.equals("dot") && !format.equals("json")) {
+			post("Unknown export format: " + format + " (use text, dot or json)");
+			return;
+		}
+		final VmmTree tree = this.getPrintTree().snapshot();
+		final int depth = this.print_depth;
+		this.getFileExecutor().execute(new Runnable() {
+			public void run() {
+				String failure = null;
+				try {
+					Writer out = new BufferedWriter(new FileWriter(f));
+					try {
+						if (format.equals("dot")) {
+							tree.writeDot(out, depth, 0);
+						} else if (format.equals("json")) {
+							tree.writeJson(out, depth, 0);
+						} else {
+							tree.write(out);
+						}
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					failure = e.getMessage();
+				} catch (RuntimeException e) {
+					failure = e.toString();
+				}
+				final String result = failure;
+				MaxSystem.defer(new Executable() {
+					public void execute() {
+						if (result == null) {
+							post("Model exported to " + f);
+							outlet(1, "exported", new Atom[]{Atom.newAtom(f)});
+						} else {
+							post("Export model failed with filename: " + f);
+							post("Exception thrown:");
+							post(result);
+							outlet(1, "exportfailed", new Atom[]{Atom.newAtom(f)});
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Writer that posts each complete line to the Max window as it is written.
+	 */
+	private static class PostWriter extends Writer {
+		private StringBuilder line = new StringBuilder();
+
+		public void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				if (cbuf[i] == '\n') {
+					post(line.toString());
+					line.setLength(0);
+				} else {
+					line.append(cbuf[i]);
+				}
+			}
+		}
+
+		public void flush() {
+			if (line.length() > 0) {
+				post(line.toString());
+				line.setLength(0);
+			}
+		}
+
+		public void close() {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Respond to the 'save' message.
+	 * Save the VMM to a file. A snapshot of the model is written on a background thread,
+	 * and 'saved <filename>' or 'savefailed <filename>' is sent from the status outlet when it is done.
+	 * @param filename
+	 */
+	public void save(Atom[] filename) {
+		if (filename.length < 1 || !filename[0].isString()) {
+			post("Message 'save' must be followed by file name.");
+			return;
+		}
+		final String f = filename[0].getString();
+		final Serializable snapshot = this.snapshotModel();
+		this.getFileExecutor().execute(new Runnable() {
+			public void run() {
+				IOException failure = null;
+				try {
+					VmmFile.save(snapshot, new File(f));
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = new IOException(e.toString());
+				}
+				final IOException result = failure;
+				MaxSystem.defer(new Executable() {
+					public void execute() {
+						if (result == null) {
+							outlet(1, "saved", new Atom[]{Atom.newAtom(f)});
+						} else {
+							post("Save model failed with filename: " + f);
+							post("Exception thrown:");
+							post(result.getMessage());
+							outlet(1, "savefailed", new Atom[]{Atom.newAtom(f)});
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Respond to the 'load' message.
+	 * Load the VMM from a file. The file is read and checked on a background thread, and the
+	 * loaded model replaces the current one only if it loads without error.
+	 * 'loaded <filename>' or 'loadfailed <filename>' is sent from the status outlet when it is done.
+	 * Anything learnt after the load was requested is lost when the model is replaced, and a
+	 * warning is posted if that happens.
+	 * @param filename
+	 */
+	public void load(Atom[] filename) {
+		if (filename.length < 1 || !filename[0].isString()) {
+			post("Message 'load' must be followed by file name.");
+			return;
+		}
+		final String f = filename[0].getString();
+		final int changes = this.model_changes;
+		this.getFileExecutor().execute(new Runnable() {
+			public void run() {
+				Object loaded = null;
+				String failure = null;
+				try {
+					loaded = VmmFile.loadObject(new File(f));
+				} catch (IOException e) {
+					failure = e.getMessage();
+				} catch (ClassNotFoundException e) {
+					failure = e.getMessage();
+				} catch (RuntimeException e) {
+					// e.g. a damaged legacy file, which has no checksum
+					failure = e.toString();
+				}
+				final Object staged = loaded;
+				final String load_failure = failure;
+				MaxSystem.defer(new Executable() {
+					public void execute() {
+						String result = load_failure;
+						if (result == null) {
+							result = installModel(staged);
+						}
+						if (result == null) {
+							if (model_changes != changes) {
+								post("Warning: the model changed after 'load " + f + "' was requested. Those changes have been discarded.");
+							}
+							modelChanged();
+							post("Model loaded from " + f);
+							printmodelsummary();
+							outlet(1, "loaded", new Atom[]{Atom.newAtom(f)});
+						} else {
+							post("Load model failed with filename: " + f);
+							post("Exception thrown:");
+							post(result);
+							post("Current model has been kept");
+							outlet(1, "loadfailed", new Atom[]{Atom.newAtom(f)});
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Single background thread for saving, loading and exporting, so that file operations run in the order they were requested.
+	 */
+	private synchronized ExecutorService getFileExecutor() {
+		if (this.file_executor == null) {
+			this.file_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "VMM file I/O");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return this.file_executor;
+	}
+
+	/**
+	 * Called by Max when the object is deleted.
+	 * Let any pending saves finish, then stop the background thread.
+	 */
+	protected void notifyDeleted() {
+		if (this.file_executor != null) {
+			this.file_executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import com.cycling74.max.*;
+
+/*
+ * A VMM with several viewpoints (reduction functions) sharing one store of raw data.
+ * Arguments: the maximum order, then the number of viewpoints, e.g. 'mxj VMM_Viewpoints 4 3'.
+ *
+ * Three inlets, as for VMM:
+ * - The left inlet accepts history lists and various messages. A history list starts with
+ *   the viewpoint number, e.g. '1 60' adds [60] to the history of viewpoint 1.
+ * - The middle inlet accepts reduction lists, which also start with the viewpoint number.
+ * - The right inlet accepts raw data lists.
+ *
+ * When learning, every raw data point must be matched by one reduction data point for each
+ * viewpoint. A single 'learn' then updates every viewpoint tree, storing the raw data once.
+ * 'learnseq' learns a whole packed sequence in one message instead.
+ *
+ * 'printmodel', 'printraw' and 'export' work on one viewpoint tree at a time, chosen with 'printviewpoint'.
+ */
+public class VMM_Viewpoints extends VMM_Object {
+
+	private ArrayList<ArrayList<Integer>> raw = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<ArrayList<ArrayList<Integer>>> reductions = new ArrayList<ArrayList<ArrayList<Integer>>>();
+	private ArrayList<ArrayList<ArrayList<Integer>>> histories = new ArrayList<ArrayList<ArrayList<Integer>>>();
+	private VmmViewpoints model;
+	private int print_viewpoint = 0;
+
+	/**
+	 * Constructor
+	 * @param args - expects up to 2 integers: the maximum order of the VMM and the number of viewpoints.
+	 */
+	public VMM_Viewpoints(Atom[] args) {
+		declareInlets(new int[]{DataTypes.ALL, DataTypes.ALL, DataTypes.ALL});
+		declareOutlets(new int[]{DataTypes.ALL, DataTypes.ALL});
+		createInfoOutlet(false);
+		setInletAssist(new String[] {"Various Messages, History Data (viewpoint, list)", "Reduction Data (viewpoint, list)", "Raw Data"});
+		setOutletAssist(new String[] {"Generated Output", "File Status (save, load, export)"});
+		int model_order = 10;
+		int num_viewpoints = 1;
+		if (args.length > 0 && args[0].isInt())
+			model_order = args[0].getInt();
+		if (args.length > 1 && args[1].isInt() && args[1].getInt() > 0)
+			num_viewpoints = args[1].getInt();
+		this.model = new VmmViewpoints(model_order, num_viewpoints);
+		for (int v = 0; v < num_viewpoints; v++) {
+			this.reductions.add(new ArrayList<ArrayList<Integer>>());
+			this.histories.add(new ArrayList<ArrayList<Integer>>());
+		}
+	}
+
+	protected int getModelOrder() {
+		return this.model.getOrder();
+	}
+
+	protected boolean isModelEmpty() {
+		return this.model.getSize() == 0;
+	}
+
+	protected ArrayList<Integer> generateFromModel(int gen_order) {
+		return this.model.generate(this.histories, gen_order);
+	}
+
+	protected ArrayList<Integer> generateStartFromModel() {
+		return this.model.gen_start();
+	}
+
+	protected VmmTree getPrintTree() {
+		return this.model.getViewpoint(this.print_viewpoint);
+	}
+
+	protected Serializable snapshotModel() {
+		return this.model.snapshot();
+	}
+
+	protected String installModel(Object loaded) {
+		if (!(loaded instanceof VmmViewpoints)) {
+			return "Not a VMM_Viewpoints model (use VMM for single-viewpoint models)";
+		}
+		VmmViewpoints viewpoints = (VmmViewpoints)loaded;
+		if (viewpoints.getNumViewpoints() != this.model.getNumViewpoints()) {
+			return "Model has " + viewpoints.getNumViewpoints() + " viewpoints, this object has " + this.model.getNumViewpoints();
+		}
+		this.model = viewpoints;
+		return null;
+	}
+
+	/**
+	 * Respond to an int in one of the inlets (raw data only, as the other inlets need a viewpoint number).
+	 */
+	public void inlet(int i) {
+		int inlet_num = getInlet();
+		if (inlet_num == 2) {
+			ArrayList<Integer> new_data = new ArrayList<Integer>();
+			new_data.add(i);
+			this.raw.add(new_data);
+		} else {
+			post("VMM_Viewpoints: history and reduction lists must start with a viewpoint number.");
+		}
+	}
+
+	/**
+	 * Respond to a list in one of the inlets
+	 */
+	public void list(Atom[] args){
+		int inlet_num = getInlet();
+		ArrayList<Integer> new_data = new ArrayList<Integer>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].isInt()) {
+				error("VMM_Viewpoints: lists must contain integers only. Received: " + args[i].toString());
+				return;
+			}
+			new_data.add(args[i].getInt());
+		}
+		if (inlet_num == 2) {
+			this.raw.add(new_data);
+			return;
+		}
+
+		// History and reduction lists start with the viewpoint number
+		if (new_data.size() < 2 || new_data.get(0) < 0 || new_data.get(0) >= this.model.getNumViewpoints()) {
+			error("VMM_Viewpoints: list must start with a viewpoint number from 0 to " + (this.model.getNumViewpoints() - 1));
+			return;
+		}
+		int viewpoint = new_data.remove(0);
+		if (inlet_num == 0) {
+			this.histories.get(viewpoint).add(new_data);
+		} else if (inlet_num == 1) {
+			this.reductions.get(viewpoint).add(new_data);
+		}
+	}
+
+	/**
+	 * Respond to 'learn' message in leftmost inlet.
+	 * Have every viewpoint learn from recent data.
+	 */
+	public void learn() {
+		int inlet_num = getInlet();
+		if (inlet_num == 0) {
+			if (this.raw.size() == 0) {
+				post("Cannot learn: no input.");
+				return;
+			}
+			for (int v = 0; v < this.reductions.size(); v++) {
+				if (this.reductions.get(v).size() != this.raw.size()) {
+					post("Cannot learn: reduction list of viewpoint " + v + " and raw list have different lengths.");
+					return;
+				}
+			}
+			this.model.learn(this.reductions, this.raw);
+			this.modelChanged();
+			this.cleardata();
+		}
+	}
+
+	/**
+	 * Respond to the 'learnseq' message in the leftmost inlet.
+	 * Learn a whole sequence sent as one list: the reduction length of each viewpoint and the raw
+	 * length of each event, followed by the events themselves, each one being the reduction values
+	 * of every viewpoint in turn then its raw values.
+	 * e.g. with two viewpoints, 'learnseq 1 1 2 60 0 60 100 64 4 64 110 67 3 67 105'
+	 * @param args
+	 */
+	public void learnseq(Atom[] args) {
+		int inlet_num = getInlet();
+		if (inlet_num != 0) {
+			return;
+		}
+		int[] data = this.toInts(args, "learnseq");
+		if (data == null) {
+			return;
+		}
+		int num_viewpoints = this.model.getNumViewpoints();
+		boolean valid = data.length > num_viewpoints;
+		for (int i = 0; valid && i <= num_viewpoints; i++) {
+			valid = data[i] >= 1;
+		}
+		if (!valid) {
+			post("Message 'learnseq' must start with the reduction length of each viewpoint and the raw length (all at least 1).");
+			return;
+		}
+		int[] red_lens = new int[num_viewpoints];
+		int stride = data[num_viewpoints];
+		for (int v = 0; v < num_viewpoints; v++) {
+			red_lens[v] = data[v];
+			stride += data[v];
+		}
+		int num_events = (data.length - num_viewpoints - 1) / stride;
+		if ((data.length - num_viewpoints - 1) % stride != 0) {
+			post("Cannot learn: learnseq data is not a whole number of events of length " + stride + ".");
+		} else if (num_events == 0) {
+			post("Cannot learn: no input.");
+		} else {
+			this.model.learn(data, num_viewpoints + 1, num_events, red_lens, data[num_viewpoints]);
+			this.modelChanged();
+		}
+	}
+
+	/**
+	 * Respond to the 'printviewpoint' message.
+	 * Choose the viewpoint tree used by 'printmodel', 'printraw' and 'export'.
+	 * @param viewpoint
+	 */
+	public void printviewpoint(int viewpoint) {
+		if (viewpoint < 0 || viewpoint >= this.model.getNumViewpoints()) {
+			post("Viewpoint must be from 0 to " + (this.model.getNumViewpoints() - 1));
+		} else {
+			this.print_viewpoint = viewpoint;
+		}
+	}
+
+	/**
+	 * Respond to the 'clearhistory' message.
+	 * Clear the stored history of every viewpoint.
+	 */
+	public void clearhistory() {
+		for (ArrayList<ArrayList<Integer>> h : this.histories) {
+			h.clear();
+		}
+	}
+
+	/**
+	 * Respond to the 'cleardata' message.
+	 * Clear the previously input raw and reduction data.
+	 */
+	public void cleardata() {
+		this.raw.clear();
+		for (ArrayList<ArrayList<Integer>> r : this.reductions) {
+			r.clear();
+		}
+	}
+
+	/**
+	 * Respond to the 'clearmodel' message.
+	 * Clear the VMM set up an empty one.
+	 */
+	public void clearmodel() {
+		this.model = new VmmViewpoints(this.model.getOrder(), this.model.getNumViewpoints());
+		this.modelChanged();
+	}
+
+	/**
+	 * Respond to the 'printmodelsummary' message.
+	 */
+	public void printmodelsummary() {
+		post("VMM Order: " + this.model.getOrder());
+		post("Number of Viewpoints: " + this.model.getNumViewpoints());
+		for (int v = 0; v < this.model.getNumViewpoints(); v++) {
+			post("Number of Nodes in viewpoint " + v + ": " + this.model.getViewpoint(v).getSize());
+		}
+		post("Number of possible outputs: " + this.model.getNumRawOuts());
+	}
+}
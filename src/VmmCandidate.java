@@ -0,0 +1,88 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+
+/*
+ * A candidate continuation returned by VmmTree.top_k and VmmTree.beam_search:
+ * a sequence of raw outputs (with their reductions) and its probability.
+ * Candidates sort most probable first.
+ */
+public class VmmCandidate extends Object implements Comparable<VmmCandidate>
+{
+	private ArrayList<ArrayList<Integer>> outputs = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<ArrayList<Integer>> reductions = new ArrayList<ArrayList<Integer>>();
+	private double probability = 1.0;
+
+	/**
+	 * Constructor for the empty candidate (probability 1)
+	 */
+	public VmmCandidate()
+	{
+	}
+
+	/**
+	 * Constructor
+	 * @param prefix candidate to extend
+	 * @param output raw output appended to the prefix
+	 * @param reduction reduction of the output (may be null)
+	 * @param probability probability of the whole sequence
+	 */
+	public VmmCandidate(VmmCandidate prefix, ArrayList<Integer> output, ArrayList<Integer> reduction, double probability)
+	{
+		this.outputs.addAll(prefix.outputs);
+		this.outputs.add(output);
+		this.reductions.addAll(prefix.reductions);
+		this.reductions.add(reduction);
+		this.probability = probability;
+	}
+
+	public int getLength()
+	{
+		return outputs.size();
+	}
+
+	public ArrayList<Integer> getOutput(int index)
+	{
+		return outputs.get(index);
+	}
+
+	public ArrayList<Integer> getReduction(int index)
+	{
+		return reductions.get(index);
+	}
+
+	public ArrayList<Integer> getLastReduction()
+	{
+		return reductions.get(reductions.size()-1);
+	}
+
+	public double getProbability()
+	{
+		return probability;
+	}
+
+	public int compareTo(VmmCandidate other)
+	{
+		return Double.compare(other.probability, this.probability);
+	}
+
+	public String toString()
+	{
+		return "p=" + this.probability + ", " + this.outputs.toString();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Reading and writing VMM model files.
+ *
+ * A model file is a header followed by the serialized model (a VmmTree or a VmmViewpoints):
+ * - magic number "VMM1" (4 bytes)
+ * - length of the serialized model (4 bytes)
+ * - CRC32 of the serialized model (8 bytes)
+ *
+ * Files are written to a temporary file which is then moved over the target, so a failed
+ * save never leaves a half written model. Files saved by older versions (a bare serialized
+ * VmmTree) can still be read, without a checksum check.
+ */
+public class VmmFile
+{
+	private static final int MAGIC = 0x564D4D31; // "VMM1"
+	private static final int HEADER_LENGTH = 16;
+
+	/**
+	 * Save a model. This does not modify the model, so it can be called from any thread
+	 * as long as nothing else is modifying the model (e.g. on a snapshot).
+	 * The model is streamed to the file: the header is written last, once the length and
+	 * checksum are known.
+	 * @param model
+	 * @param file
+	 */
+	public static void save(Serializable model, File file) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			channel.position(HEADER_LENGTH);
+			CRC32 crc = new CRC32();
+			ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(
+					new CheckedOutputStream(Channels.newOutputStream(channel), crc)));
+			outputStream.writeObject(model);
+			outputStream.flush();
+
+			long length = channel.position() - HEADER_LENGTH;
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Model is too large to save: " + length + " bytes");
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC);
+			header.putInt((int)length);
+			header.putLong(crc.getValue());
+			header.flip();
+			channel.write(header, 0);
+		} finally {
+			raf.close();
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Load a single-viewpoint model, checking its checksum.
+	 * @param file
+	 * @return the loaded model
+	 * @throws IOException if the file cannot be read, is truncated, fails the checksum or is not a VmmTree
+	 */
+	public static VmmTree load(File file) throws IOException, ClassNotFoundException
+	{
+		Object model = loadObject(file);
+		if (!(model instanceof VmmTree)) {
+			throw new IOException("Not a single-viewpoint VMM model: " + file.getPath());
+		}
+		return (VmmTree)model;
+	}
+
+	/**
+	 * Load a model of any kind, checking its checksum.
+	 * The file is read twice, streaming: once to check the checksum, then to read the model,
+	 * so a corrupt file is rejected before anything is deserialized from it.
+	 * @param file
+	 * @return the loaded model (a VmmTree or a VmmViewpoints)
+	 * @throws IOException if the file cannot be read, is truncated, fails the checksum or is not a VMM model
+	 */
+	public static Object loadObject(File file) throws IOException, ClassNotFoundException
+	{
+		long skip = 0;
+		DataInputStream header = new DataInputStream(new FileInputStream(file));
+		try {
+			if (file.length() >= 4 && header.readInt() == MAGIC) {
+				int length = header.readInt();
+				long checksum = header.readLong();
+				if (length < 0 || length != file.length() - HEADER_LENGTH) {
+					throw new IOException("File is truncated: " + file.getPath());
+				}
+				if (checksum(file, HEADER_LENGTH) != checksum) {
+					throw new IOException("Checksum mismatch: " + file.getPath());
+				}
+				skip = HEADER_LENGTH;
+			}
+		} catch (EOFException e) {
+			throw new IOException("File is truncated: " + file.getPath());
+		} finally {
+			header.close();
+		}
+
+		InputStream data = new BufferedInputStream(new FileInputStream(file));
+		try {
+			if (data.skip(skip) != skip) {
+				throw new IOException("File is truncated: " + file.getPath());
+			}
+			ObjectInputStream in = new ObjectInputStream(data);
+			Object model = in.readObject();
+			if (!(model instanceof VmmTree) && !(model instanceof VmmViewpoints)) {
+				throw new IOException("Not a VMM model: " + file.getPath());
+			}
+			return model;
+		} finally {
+			data.close();
+		}
+	}
+
+	/*
+	 * CRC32 of a file from offset to the end.
+	 */
+	private static long checksum(File file, long offset) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		InputStream in = new CheckedInputStream(new FileInputStream(file), crc);
+		try {
+			if (in.skip(offset) != offset) {
+				throw new IOException("File is truncated: " + file.getPath());
+			}
+			crc.reset();
+			byte[] buffer = new byte[65536];
+			while (in.read(buffer) >= 0) {
+				// the CheckedInputStream updates crc
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
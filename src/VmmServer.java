@@ -0,0 +1,435 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * Headless server that lets other local processes (sequencers, test rigs, offline renderers)
+ * use VMM models without Max.
+ *
+ * Usage: java VmmServer <port> <model>...
+ * where each model is either a model file saved by the VMM object, or an integer giving the
+ * order of a new empty model. Models are numbered from 0 in the order given. The server only
+ * listens on the loopback address.
+ *
+ * Protocol: binary, big-endian (DataInputStream/DataOutputStream). Every request is
+ *   int request_id, byte op, short model, payload
+ * and gets one response
+ *   int request_id, byte status (0 ok, 1 error), payload (or a UTF error message)
+ * Responses on a connection may arrive out of order when requests go to different models.
+ *
+ * A list is an int length followed by that many ints. A history is an int length followed
+ * by that many lists.
+ *
+ * op 1 LEARN     request: int num_events, int red_len, int raw_len, then num_events events,
+ *                each red_len reduction ints followed by raw_len raw ints
+ *                response: empty
+ * op 2 GENERATE  request: int order, history          response: list
+ * op 3 SCORE     request: int order, history, list    response: double probability
+ * op 4 INFO      request: empty                       response: int order, int nodes, int raw outputs
+ *
+ * Each model is owned by one worker thread that takes requests from a queue. Requests that are
+ * queued together are handled as a batch: the GENERATE requests between two LEARN requests are
+ * answered with one VmmTree.generate_poly call per order.
+ */
+public class VmmServer {
+
+	public static final int OP_LEARN = 1;
+	public static final int OP_GENERATE = 2;
+	public static final int OP_SCORE = 3;
+	public static final int OP_INFO = 4;
+
+	private static final int STATUS_OK = 0;
+	private static final int STATUS_ERROR = 1;
+
+	// Upper bound on the number of ints in a request (counting the length of each list),
+	// so a corrupt request cannot exhaust the heap
+	private static final int MAX_LENGTH = 1 << 20;
+	private static final int MAX_BATCH = 256;
+
+	private ArrayList<ModelWorker> workers = new ArrayList<ModelWorker>();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java VmmServer <port> <model file or order>...");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		ArrayList<VmmTree> models = new ArrayList<VmmTree>();
+		for (int i = 1; i < args.length; i++) {
+			try {
+				models.add(new VmmTree(Integer.parseInt(args[i])));
+				System.out.println("Model " + (i-1) + ": new model of order " + args[i]);
+			} catch (NumberFormatException e) {
+				try {
+					models.add(VmmFile.load(new File(args[i])));
+				} catch (ClassNotFoundException c) {
+					throw new IOException("Cannot load model " + args[i] + ": " + c.getMessage());
+				}
+				System.out.println("Model " + (i-1) + ": loaded from " + args[i]);
+			}
+		}
+		new VmmServer(models).serve(port);
+	}
+
+	/**
+	 * Constructor. Starts one worker thread per model.
+	 * @param models
+	 */
+	public VmmServer(ArrayList<VmmTree> models) {
+		for (int m = 0; m < models.size(); m++) {
+			ModelWorker worker = new ModelWorker(models.get(m));
+			Thread t = new Thread(worker, "VMM model " + m);
+			t.setDaemon(true);
+			t.start();
+			this.workers.add(worker);
+		}
+	}
+
+	/**
+	 * Accept connections on the loopback address until the process is stopped,
+	 * reading each connection on its own thread.
+	 * @param port
+	 */
+	public void serve(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("VMM server listening on " + server.getLocalSocketAddress());
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						readRequests(socket);
+					}
+				}, "VMM connection " + socket.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Read requests from a connection and queue them on their model's worker until the connection closes.
+	 */
+	private void readRequests(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			Connection conn = new Connection(socket.getOutputStream());
+			while (true) {
+				Request r = new Request();
+				r.conn = conn;
+				try {
+					r.id = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				r.op = in.readByte();
+				int model = in.readShort();
+				switch (r.op) {
+				case OP_LEARN:
+					r.num_events = readLength(in, MAX_LENGTH);
+					r.red_len = readLength(in, MAX_LENGTH);
+					r.raw_len = readLength(in, MAX_LENGTH);
+					if ((long)r.num_events * (r.red_len + r.raw_len) > MAX_LENGTH) {
+						throw new IOException("Request too large");
+					}
+					r.data = new int[r.num_events * (r.red_len + r.raw_len)];
+					for (int i = 0; i < r.data.length; i++) {
+						r.data[i] = in.readInt();
+					}
+					break;
+				case OP_GENERATE:
+					r.order = in.readInt();
+					r.history = readHistory(in, MAX_LENGTH);
+					break;
+				case OP_SCORE:
+					r.order = in.readInt();
+					r.history = readHistory(in, MAX_LENGTH);
+					r.output = readList(in, MAX_LENGTH - countInts(r.history));
+					break;
+				case OP_INFO:
+					break;
+				default:
+					throw new IOException("Unknown op " + r.op);
+				}
+				if (model < 0 || model >= this.workers.size()) {
+					conn.sendError(r.id, "No model " + model);
+				} else {
+					this.workers.get(model).queue.add(r);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	private static int readLength(DataInputStream in, int max) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > max) {
+			throw new IOException("Invalid length " + len);
+		}
+		return len;
+	}
+
+	/*
+	 * Read a list of at most max ints. Lists grow as they are read rather than being
+	 * allocated from the length sent by the client.
+	 */
+	private static ArrayList<Integer> readList(DataInputStream in, int max) throws IOException {
+		int len = readLength(in, max);
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for (int i = 0; i < len; i++) {
+			list.add(in.readInt());
+		}
+		return list;
+	}
+
+	/*
+	 * Read a history of at most max ints in all, counting the length of each list.
+	 */
+	private static ArrayList<ArrayList<Integer>> readHistory(DataInputStream in, int max) throws IOException {
+		int len = readLength(in, max);
+		int remaining = max - len;
+		ArrayList<ArrayList<Integer>> history = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < len; i++) {
+			ArrayList<Integer> list = readList(in, remaining);
+			remaining -= list.size();
+			history.add(list);
+		}
+		return history;
+	}
+
+	private static int countInts(ArrayList<ArrayList<Integer>> history) {
+		int count = history.size();
+		for (ArrayList<Integer> list : history) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	/*
+	 * A decoded request, waiting to be handled by a model worker.
+	 */
+	private static class Request {
+		Connection conn;
+		int id;
+		int op;
+		int order;
+		ArrayList<ArrayList<Integer>> history;
+		ArrayList<Integer> output;
+		int[] data;
+		int num_events;
+		int red_len;
+		int raw_len;
+	}
+
+	/*
+	 * Sending side of a client connection. Responses are written whole, one at a time.
+	 */
+	private static class Connection {
+		private OutputStream out;
+
+		Connection(OutputStream out) {
+			this.out = new BufferedOutputStream(out);
+		}
+
+		void sendError(int id, String message) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				new DataOutputStream(bytes).writeUTF(message);
+				this.send(id, STATUS_ERROR, bytes);
+			} catch (IOException e) {
+				// connection closed, nothing to report to
+			}
+		}
+
+		synchronized void send(int id, int status, ByteArrayOutputStream payload) throws IOException {
+			DataOutputStream data = new DataOutputStream(this.out);
+			data.writeInt(id);
+			data.writeByte(status);
+			payload.writeTo(data);
+			data.flush();
+		}
+	}
+
+	/*
+	 * Owns one model and handles its requests in batches.
+	 */
+	private static class ModelWorker implements Runnable {
+		private VmmTree model;
+		LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+		ModelWorker(VmmTree model) {
+			this.model = model;
+		}
+
+		public void run() {
+			ArrayList<Request> batch = new ArrayList<Request>();
+			while (true) {
+				try {
+					batch.add(this.queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				this.queue.drainTo(batch, MAX_BATCH - 1);
+				this.handleBatch(batch);
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Handle a batch in arrival order, except that each run of GENERATE requests
+		 * (up to the next LEARN) is answered together.
+		 */
+		private void handleBatch(ArrayList<Request> batch) {
+			boolean[] done = new boolean[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				if (done[i]) {
+					continue;
+				}
+				Request r = batch.get(i);
+				if (r.op == OP_GENERATE) {
+					this.handleGenerate(batch, i, done);
+				} else {
+					// A bad request must not stop the worker, which is the model's only thread
+					try {
+						this.handle(r);
+					} catch (RuntimeException e) {
+						r.conn.sendError(r.id, "Request failed: " + e);
+					}
+				}
+				done[i] = true;
+			}
+		}
+
+		/**
+		 * Answer the GENERATE request at index first and every later GENERATE request with the
+		 * same order before the next LEARN, using one generate_poly call.
+		 */
+		private void handleGenerate(ArrayList<Request> batch, int first, boolean[] done) {
+			int order = batch.get(first).order;
+			boolean empty = this.model.getSize() == 0;
+			ArrayList<Request> group = new ArrayList<Request>();
+			ArrayList<ArrayList<ArrayList<Integer>>> histories = new ArrayList<ArrayList<ArrayList<Integer>>>();
+			for (int i = first; i < batch.size() && batch.get(i).op != OP_LEARN; i++) {
+				Request r = batch.get(i);
+				if (r.op == OP_GENERATE && r.order == order && !done[i]) {
+					done[i] = true;
+					if (empty) {
+						r.conn.sendError(r.id, "Cannot generate: VMM is empty.");
+					} else {
+						group.add(r);
+						histories.add(r.history);
+					}
+				}
+			}
+			if (group.size() == 0) {
+				return;
+			}
+			ArrayList<ArrayList<Integer>> gen;
+			try {
+				gen = this.model.generate_poly(histories, order);
+			} catch (RuntimeException e) {
+				for (Request r : group) {
+					r.conn.sendError(r.id, "Request failed: " + e);
+				}
+				return;
+			}
+			for (int g = 0; g < group.size(); g++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				if (gen.get(g) == null) {
+					group.get(g).conn.sendError(group.get(g).id, "Cannot generate: VMM has no continuations for this history.");
+					continue;
+				}
+				try {
+					writeList(out, gen.get(g));
+					group.get(g).conn.send(group.get(g).id, STATUS_OK, bytes);
+				} catch (IOException e) {
+					// client has gone, its reader thread will clean up
+				}
+			}
+		}
+
+		private void handle(Request r) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				switch (r.op) {
+				case OP_LEARN:
+					if (r.num_events == 0 || r.red_len == 0 || r.raw_len == 0) {
+						r.conn.sendError(r.id, "Cannot learn: no input.");
+						return;
+					}
+					this.model.learn(r.data, 0, r.num_events, r.red_len, r.raw_len);
+					break;
+				case OP_SCORE:
+					if (this.model.getSize() == 0) {
+						r.conn.sendError(r.id, "Cannot score: VMM is empty.");
+						return;
+					}
+					double p = this.model.score(r.history, r.output, r.order);
+					if (Double.isNaN(p)) {
+						r.conn.sendError(r.id, "Cannot score: VMM has no continuations for this history.");
+						return;
+					}
+					out.writeDouble(p);
+					break;
+				case OP_INFO:
+					out.writeInt(this.model.getOrder());
+					out.writeInt(this.model.getSize());
+					out.writeInt(this.model.getNumRawOuts());
+					break;
+				default:
+					break;
+				}
+				r.conn.send(r.id, STATUS_OK, bytes);
+			} catch (IOException e) {
+				// client has gone, its reader thread will clean up
+			}
+		}
+
+		private static void writeList(DataOutputStream out, ArrayList<Integer> list) throws IOException {
+			out.writeInt(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				out.writeInt(list.get(i));
+			}
+		}
+	}
+}
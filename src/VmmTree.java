@@ -15,8 +15,15 @@
     along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 import java.util.Random;
 
 public class VmmTree extends Object implements Serializable
@@ -26,7 +33,25 @@ public class VmmTree extends Object implements Serializable
 	private ArrayList<VmmTreeNode> nodes = new ArrayList<VmmTreeNode>();
 	private int order;
 	private ArrayList<ArrayList<Integer>> raw_outs = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<ArrayList<Integer>> red_outs = new ArrayList<ArrayList<Integer>>(); // reduction of each raw output
 	private ArrayList<ArrayList<Integer>> seq_starts = new ArrayList<ArrayList<Integer>>();
+	private boolean shared_store = false;
+
+	// Owner of the nodes this tree may modify in place; nodes shared with a snapshot have another owner
+	private transient Object node_owner = new Object();
+
+	// Canonical (transposition invariant) contexts, see setCanonical
+	private boolean canonical = false;
+	private int canon_red_index;
+	private int canon_raw_index;
+	private int canon_modulus;
+	private ArrayList<Integer> ref_outs = new ArrayList<Integer>(); // reference value of each output
+
+	// Ids of distinct outputs, used for the per-node output counts (see countedNode).
+	// Only built when a node is queried, and rebuilt after loading.
+	private transient HashMap<ArrayList<Integer>, Integer> output_index = new HashMap<ArrayList<Integer>, Integer>();
+	private transient ArrayList<Integer> output_ids = new ArrayList<Integer>(); // id of each stored output
+	private transient ArrayList<Integer> root_output_ids = new ArrayList<Integer>(); // canonical trees: id of each absolute output
 
 	/**
 	 * Constructor
@@ -37,17 +62,139 @@ public class VmmTree extends Object implements Serializable
 		this.order = order;
 	}
 
+	/**
+	 * Constructor for a tree that shares its raw outputs and sequence starts with other trees
+	 * (see VmmViewpoints). Only learnContexts should be used to train it.
+	 * @param order Maximum order (sets max depth of tree)
+	 * @param raw_outs shared raw outputs
+	 * @param seq_starts shared sequence starts
+	 */
+	VmmTree(int order, ArrayList<ArrayList<Integer>> raw_outs, ArrayList<ArrayList<Integer>> seq_starts)
+	{
+		this.order = order;
+		this.raw_outs = raw_outs;
+		this.seq_starts = seq_starts;
+		this.shared_store = true;
+	}
+
+	/**
+	 * Store contexts relative to a reference value, so that transpositions of the same figure
+	 * share nodes. The reference is one value of the most recent reduction of the context
+	 * (e.g. the pitch): in every stored context, that value is replaced by its difference from
+	 * the reference (modulo modulus, if modulus is above 0, e.g. 12 for pitch classes).
+	 * Raw outputs reached through a context are stored relative to the same reference, and
+	 * generation maps them back using the reference of the current history.
+	 * Outputs drawn from the root node (no context) are always returned as they were learnt.
+	 * This can only be set on an empty tree that does not share its raw outputs.
+	 * @param red_index index of the reference value in each reduction
+	 * @param raw_index index of the value in each raw output that moves with the reference (-1 for none)
+	 * @param modulus modulus applied to relative reduction values (0 for none)
+	 * @return false if the tree is not empty or shares its raw outputs
+	 */
+	public boolean setCanonical(int red_index, int raw_index, int modulus)
+	{
+		if (this.getSize() > 0 || this.raw_outs.size() > 0 || this.shared_store) {
+			return false;
+		}
+		this.canonical = true;
+		this.canon_red_index = red_index;
+		this.canon_raw_index = raw_index;
+		this.canon_modulus = modulus;
+		return true;
+	}
+
+	public boolean isCanonical()
+	{
+		return canonical;
+	}
+
+	public int getCanonicalReductionIndex()
+	{
+		return canon_red_index;
+	}
+
+	public int getCanonicalRawIndex()
+	{
+		return canon_raw_index;
+	}
+
+	public int getCanonicalModulus()
+	{
+		return canon_modulus;
+	}
+
+	/**
+	 * Make a copy of the tree that is not affected by further learning, e.g. to save it
+	 * on another thread. Outputs and reductions are never modified once learnt, so they are shared.
+	 * Nodes are shared too, and copied on write: after a snapshot, each tree copies a node
+	 * the first time it modifies it. Taking a snapshot only copies the lists of references.
+	 * @return the copy
+	 */
+	public VmmTree snapshot()
+	{
+		VmmTree copy = new VmmTree(this.order);
+		copy.raw_outs.addAll(this.raw_outs);
+		copy.seq_starts.addAll(this.seq_starts);
+		this.copyModel(copy);
+		return copy;
+	}
+
+	/**
+	 * As snapshot, for a tree sharing its raw outputs and sequence starts (see VmmViewpoints).
+	 * @param raw_outs copy of the shared raw outputs
+	 * @param seq_starts copy of the shared sequence starts
+	 * @return the copy, sharing raw_outs and seq_starts
+	 */
+	VmmTree snapshot(ArrayList<ArrayList<Integer>> raw_outs, ArrayList<ArrayList<Integer>> seq_starts)
+	{
+		VmmTree copy = new VmmTree(this.order, raw_outs, seq_starts);
+		this.copyModel(copy);
+		return copy;
+	}
+
+	/*
+	 * Copy everything but the raw outputs and sequence starts into copy, sharing the nodes.
+	 */
+	private void copyModel(VmmTree copy)
+	{
+		copy.canonical = this.canonical;
+		copy.canon_red_index = this.canon_red_index;
+		copy.canon_raw_index = this.canon_raw_index;
+		copy.canon_modulus = this.canon_modulus;
+		copy.ref_outs.addAll(this.ref_outs);
+		copy.nodes.addAll(this.nodes);
+		copy.red_outs.addAll(this.red_outs);
+
+		// Neither tree owns the shared nodes any more
+		this.node_owner = new Object();
+	}
+
 	private void addNode(VmmTreeNode n)
 	{
+		n.setOwner(this.node_owner);
 		nodes.add(n);
 	}
 
+	/*
+	 * The node at index, to be modified: a node shared with a snapshot is replaced by a copy first.
+	 */
+	private VmmTreeNode writableNode(int index)
+	{
+		VmmTreeNode n = this.nodes.get(index);
+		if (n.getOwner() != this.node_owner) {
+			n = new VmmTreeNode(n);
+			n.setOwner(this.node_owner);
+			this.nodes.set(index, n);
+		}
+		return n;
+	}
+
 	public int getSize()
 	{
 		return nodes.size();
 	}
 
-	private VmmTreeNode getNode(int index)
+	VmmTreeNode getNode(int index)
 	{
 		return this.nodes.get(index);
 	}
@@ -90,46 +237,352 @@ public class VmmTree extends Object implements Serializable
 			gen_order = this.order;
 		}
 
+		int node_id = this.descend(history, gen_order);
+
+		// Randomly choose a continuation from node node_id and return
+		int num_continuations = this.getNode(node_id).getNumContinuations();
+		int rand_choice = randomGenerator.nextInt(num_continuations);
+		return this.rawOutput(this.getNode(node_id).getContinuation(rand_choice), node_id, this.reference(history));
+	}
+
+	/*
+	 * Draw one Markov output for each of several voices in a single call.
+	 * Each voice is descended on its own: hashing shared contexts to save link searches
+	 * costs more than the short link searches it saves.
+	 * @param histories one history per voice (an empty history draws from the root)
+	 * @param gen_order maximum order, silently reduced to the model order
+	 * @return one output per voice, in the same order as histories, or null for a voice
+	 *         whose context has no continuations
+	 */
+	public ArrayList<ArrayList<Integer>> generate_poly(ArrayList<ArrayList<ArrayList<Integer>>> histories, int gen_order) {
+
+		if (gen_order > this.order) {
+			gen_order = this.order;
+		}
+
+		ArrayList<ArrayList<Integer>> outputs = new ArrayList<ArrayList<Integer>>(histories.size());
+		for (ArrayList<ArrayList<Integer>> history : histories) {
+			int node_id = this.descend(history, gen_order);
+			VmmTreeNode node = this.getNode(node_id);
+			if (node.getNumContinuations() == 0) {
+				outputs.add(null);
+				continue;
+			}
+			int rand_choice = randomGenerator.nextInt(node.getNumContinuations());
+			outputs.add(this.rawOutput(node.getContinuation(rand_choice), node_id, this.reference(history)));
+		}
+		return outputs;
+	}
+
+	/*
+	 * Probability of an output given the history: the share of the continuations of the
+	 * deepest matching node that have this output.
+	 * @return the probability, or NaN if the deepest matching node has no continuations
+	 */
+	public double score(ArrayList<ArrayList<Integer>> history, ArrayList<Integer> output, int gen_order) {
+		if (gen_order > this.order) {
+			gen_order = this.order;
+		}
+		int node_id = this.descend(history, gen_order);
+		int ref = this.reference(history);
+		VmmTreeNode node = this.countedNode(node_id);
+		if (node.getNumContinuations() == 0) {
+			return Double.NaN;
+		}
+		for (int i = 0; i < node.getNumOutputs(); i++) {
+			if (this.compareReductions(this.rawOutput(node.getOutputContinuation(i), node_id, ref), output)) {
+				return (double)node.getOutputCount(i) / node.getNumContinuations();
+			}
+		}
+		return 0.0;
+	}
+
+	/*
+	 * Find the k most probable next outputs given the history, with their probabilities.
+	 * Probabilities are the share of the continuations of the deepest matching node
+	 * that have each output.
+	 * @return up to k candidates, most probable first
+	 */
+	public ArrayList<VmmCandidate> top_k(ArrayList<ArrayList<Integer>> history, int k, int gen_order) {
+		if (gen_order > this.order) {
+			gen_order = this.order;
+		}
+		int node_id = this.descend(history, gen_order);
+		ArrayList<VmmCandidate> top = new ArrayList<VmmCandidate>(this.topAtNode(node_id, this.reference(history), k, new VmmCandidate()));
+		Collections.sort(top);
+		return top;
+	}
+
+	/*
+	 * Beam search for the most probable continuations of the history that are
+	 * steps outputs long. At each step every beam is extended by its width most probable
+	 * next outputs (using the reductions stored with the outputs to extend the context)
+	 * and only the width most probable sequences are kept.
+	 * A beam ending in an output with no stored reduction (from a model saved by an older
+	 * version) cannot be extended and is dropped, so every returned beam is steps outputs long.
+	 * @return up to width candidates, most probable first (none if no beam could be extended)
+	 */
+	public ArrayList<VmmCandidate> beam_search(ArrayList<ArrayList<Integer>> history, int steps, int width, int gen_order) {
+		if (gen_order > this.order) {
+			gen_order = this.order;
+		}
+		ArrayList<VmmCandidate> beams = new ArrayList<VmmCandidate>();
+		beams.add(new VmmCandidate());
+		for (int step = 0; step < steps; step++) {
+			PriorityQueue<VmmCandidate> best = new PriorityQueue<VmmCandidate>(width + 1, Collections.reverseOrder());
+			for (VmmCandidate beam : beams) {
+				if (beam.getLength() > 0 && beam.getLastReduction() == null) {
+					continue;
+				}
+				ArrayList<ArrayList<Integer>> context = this.extendHistory(history, beam, gen_order);
+				int node_id = this.descend(context, gen_order);
+				for (VmmCandidate c : this.topAtNode(node_id, this.reference(context), width, beam)) {
+					offerBounded(best, c, width);
+				}
+			}
+			beams = new ArrayList<VmmCandidate>(best);
+			Collections.sort(beams);
+		}
+		return beams;
+	}
+
+	/*
+	 * Find the k most probable outputs of a node, each appended to prefix.
+	 * Uses the node's counts of distinct outputs, and only the best k are kept in a bounded queue.
+	 * ref is the reference value of the context (see setCanonical).
+	 */
+	private PriorityQueue<VmmCandidate> topAtNode(int node_id, int ref, int k, VmmCandidate prefix) {
+		VmmTreeNode node = this.countedNode(node_id);
+		int num_continuations = node.getNumContinuations();
+
+		PriorityQueue<VmmCandidate> best = new PriorityQueue<VmmCandidate>(k + 1, Collections.reverseOrder());
+		for (int i = 0; i < node.getNumOutputs(); i++) {
+			double p = prefix.getProbability() * node.getOutputCount(i) / num_continuations;
+			if (best.size() < k || p > best.peek().getProbability()) {
+				int cid = node.getOutputContinuation(i);
+				offerBounded(best, new VmmCandidate(prefix, this.rawOutput(cid, node_id, ref), this.reductionOutput(cid, node_id, ref), p), k);
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Add a candidate to a queue whose head is its least probable element, keeping at most size elements.
+	 */
+	private static void offerBounded(PriorityQueue<VmmCandidate> queue, VmmCandidate c, int size) {
+		queue.add(c);
+		if (queue.size() > size) {
+			queue.poll();
+		}
+	}
+
+	/*
+	 * The last gen_order elements of the history followed by the reductions of a candidate.
+	 */
+	private ArrayList<ArrayList<Integer>> extendHistory(ArrayList<ArrayList<Integer>> history, VmmCandidate c, int gen_order) {
+		ArrayList<ArrayList<Integer>> context = new ArrayList<ArrayList<Integer>>(gen_order);
+		int from_history = Math.max(0, gen_order - c.getLength());
+		for (int i = Math.max(0, history.size() - from_history); i < history.size(); i++) {
+			context.add(history.get(i));
+		}
+		for (int i = Math.max(0, c.getLength() - gen_order); i < c.getLength(); i++) {
+			context.add(c.getReduction(i));
+		}
+		return context;
+	}
+
+	/*
+	 * Descend down the VMM tree following the history (most recent element first) until limited by
+	 *   (i) lack of connections
+	 *  (ii) max order
+	 * (iii) history length
+	 * @return the id of the deepest node reached (0, the root, if the order is 0 or there is no history)
+	 */
+	int descend(ArrayList<ArrayList<Integer>> history, int gen_order) {
 		int histlen = history.size();
-		int num_continuations;
-		int rand_choice;
-
-		// If the order is 0 or there is no history, return a random continuation from the root of the VMM tree
-		if (gen_order == 0 || histlen == 0) {
-			num_continuations = this.getNode(0).getNumContinuations();
-			rand_choice = randomGenerator.nextInt(num_continuations);
-			return this.raw_outs.get(this.getNode(0).getContinuation(rand_choice));
-		}
-
-		// Otherwise descend down the VMM tree until limited by
-		//   (i) lack of connections
-		//  (ii) max order
-		// (iii) history length
-		int n = 1;
-		boolean found = true;
+		int ref = this.reference(history);
 		int node_id = 0; // initialise node_id to root node
-		while (n <= gen_order && found && n <= histlen) {
-			found = false;
-			for (int link_id = 0; link_id < this.getNode(node_id).getNumLinks(); link_id++) {
-				if (this.compareReductions(this.getNode(this.getNode(node_id).getLink(link_id)).getReduction(), history.get(histlen-n))) {
-					n++;
-					found = true;
-					node_id = this.getNode(node_id).getLink(link_id);
-					break;
-				}
+		for (int n = 1; n <= gen_order && n <= histlen; n++) {
+			int next = this.findLink(node_id, history.get(histlen-n), ref);
+			if (next < 0) {
+				break;
 			}
+			node_id = next;
 		}
+		return node_id;
+	}
 
-		// Randomly choose a continuation from node node_id and return
-		num_continuations = this.getNode(node_id).getNumContinuations();
-		rand_choice = randomGenerator.nextInt(num_continuations);
-		return this.raw_outs.get(this.getNode(node_id).getContinuation(rand_choice));
+	/*
+	 * Find the node linked from node_id whose reduction matches red, which is taken relative to ref
+	 * for canonical trees.
+	 * @return the id of the linked node, or -1 if there is none
+	 */
+	private int findLink(int node_id, ArrayList<Integer> red, int ref) {
+		VmmTreeNode node = this.getNode(node_id);
+		for (int link_id = 0; link_id < node.getNumLinks(); link_id++) {
+			ArrayList<Integer> link_red = this.getNode(node.getLink(link_id)).getReduction();
+			boolean match = this.canonical ? this.compareCanonical(link_red, 0, red, ref) : this.compareReductions(link_red, red);
+			if (match) {
+				return node.getLink(link_id);
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Compare two reductions after taking the reference value of each relative to its own reference.
+	 */
+	private boolean compareCanonical(ArrayList<Integer> a, int ref_a, ArrayList<Integer> b, int ref_b) {
+		if (a.size() != b.size()) return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (i == this.canon_red_index) {
+				if (this.relative(a.get(i), ref_a) != this.relative(b.get(i), ref_b)) return false;
+			} else if (!a.get(i).equals(b.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The reference value of a context (its most recent reduction), or 0 if the tree is
+	 * not canonical or there is no context.
+	 */
+	private int reference(ArrayList<ArrayList<Integer>> context) {
+		if (!this.canonical || context.size() == 0) {
+			return 0;
+		}
+		return this.referenceOf(context.get(context.size()-1));
+	}
+
+	private int referenceOf(ArrayList<Integer> red) {
+		return (this.canonical && this.canon_red_index < red.size()) ? red.get(this.canon_red_index) : 0;
+	}
+
+	private int relative(int value, int ref) {
+		int d = value - ref;
+		if (this.canon_modulus > 0) {
+			d = ((d % this.canon_modulus) + this.canon_modulus) % this.canon_modulus;
+		}
+		return d;
+	}
+
+	/*
+	 * Copy of list with the value at index moved by shift (and reduced modulo modulus if above 0).
+	 */
+	private static ArrayList<Integer> shifted(ArrayList<Integer> list, int index, int shift, int modulus) {
+		if (index < 0 || index >= list.size()) {
+			return list;
+		}
+		ArrayList<Integer> copy = new ArrayList<Integer>(list);
+		int v = list.get(index) + shift;
+		if (modulus > 0) {
+			v = ((v % modulus) + modulus) % modulus;
+		}
+		copy.set(index, v);
+		return copy;
+	}
+
+	/*
+	 * The raw output of continuation cid, reached at node node_id from a context with reference ref.
+	 * For canonical trees the stored (relative) output is mapped back to an absolute one: at the root
+	 * with the reference it was learnt with, elsewhere with the reference of the current context.
+	 */
+	private ArrayList<Integer> rawOutput(int cid, int node_id, int ref) {
+		if (!this.canonical) {
+			return this.raw_outs.get(cid);
+		}
+		int shift = (node_id == 0) ? this.ref_outs.get(cid) : ref;
+		return shifted(this.raw_outs.get(cid), this.canon_raw_index, shift, 0);
+	}
+
+	/*
+	 * The reduction of continuation cid, mapped back as for rawOutput.
+	 * Reductions are stored relative to their reference without the modulus, so this gives
+	 * back the absolute value (e.g. the pitch in its octave) rather than its residue.
+	 */
+	private ArrayList<Integer> reductionOutput(int cid, int node_id, int ref) {
+		ArrayList<Integer> red = this.red_outs.get(cid);
+		if (!this.canonical || red == null) {
+			return red;
+		}
+		int shift = (node_id == 0) ? this.ref_outs.get(cid) : ref;
+		return shifted(red, this.canon_red_index, shift, 0);
 	}
 
 	/*
 	 * Learn
 	 */
 	public void learn(ArrayList<ArrayList<Integer>> red_seq, ArrayList<ArrayList<Integer>> raw_seq)
+	{
+		// Add first item in sequence to list of sequence starts
+		this.seq_starts.add(raw_seq.get(0));
+
+		int first_cid;
+		if (this.canonical) {
+			first_cid = this.raw_outs.size();
+			addOutputs(this.canonicalOutputs(raw_seq, red_seq, this.canon_raw_index, 0), this.raw_outs);
+		} else {
+			first_cid = addOutputs(raw_seq, this.raw_outs);
+		}
+		this.learnContexts(red_seq, first_cid);
+	}
+
+	/*
+	 * For canonical trees: the elements of a training sequence, each except the first one made
+	 * relative to the reference of the element before it (its context).
+	 */
+	private ArrayList<ArrayList<Integer>> canonicalOutputs(ArrayList<ArrayList<Integer>> seq, ArrayList<ArrayList<Integer>> red_seq, int index, int modulus)
+	{
+		ArrayList<ArrayList<Integer>> outs = new ArrayList<ArrayList<Integer>>(seq.size());
+		outs.add(seq.get(0));
+		for (int i = 1; i < seq.size(); i++) {
+			outs.add(shifted(seq.get(i), index, -this.referenceOf(red_seq.get(i-1)), modulus));
+		}
+		return outs;
+	}
+
+	/*
+	 * Learn from a packed sequence of events held in a single int array.
+	 * Each event is red_len reduction values followed by raw_len raw values.
+	 * The tree keeps every raw output and every reduction (with its output), so each value
+	 * is converted once and the sequence is learnt as lists.
+	 */
+	public void learn(int[] data, int offset, int num_events, int red_len, int raw_len)
+	{
+		int stride = red_len + raw_len;
+		ArrayList<ArrayList<Integer>> red_seq = new ArrayList<ArrayList<Integer>>(num_events);
+		ArrayList<ArrayList<Integer>> raw_seq = new ArrayList<ArrayList<Integer>>(num_events);
+		for (int i = 0; i < num_events; i++) {
+			red_seq.add(toList(data, offset + i*stride, red_len));
+			raw_seq.add(toList(data, offset + i*stride + red_len, raw_len));
+		}
+		this.learn(red_seq, raw_seq);
+	}
+
+	/*
+	 * Append the elements of a training sequence to a list of outputs, in continuation index order:
+	 * from the last element back to the second one, then the first one (the continuation of the root node).
+	 * @return the continuation index of the first element added
+	 */
+	static int addOutputs(ArrayList<ArrayList<Integer>> seq, ArrayList<ArrayList<Integer>> outs)
+	{
+		int first_cid = outs.size();
+		for (int ssl = (seq.size()-2); ssl >= 0; ssl--) {
+			outs.add(seq.get(ssl+1));
+		}
+		if (seq.size() > 1) {
+			outs.add(seq.get(0));
+		}
+		return first_cid;
+	}
+
+	/*
+	 * Add the contexts of a training sequence to the tree, given the continuation index of its
+	 * first output (its raw outputs must already have been added with addOutputs).
+	 * The reductions are added to red_outs (and their references to ref_outs for canonical trees).
+	 */
+	void learnContexts(ArrayList<ArrayList<Integer>> red_seq, int first_cid)
 	{
 		if (this.getSize() == 0) {
 			VmmTreeNode n = new VmmTreeNode();
@@ -138,57 +591,62 @@ public class VmmTree extends Object implements Serializable
 
 		int seqLen = red_seq.size();
 
-		// Add first item in sequence to list of sequence starts
-		this.seq_starts.add(raw_seq.get(0));
+		if (this.canonical) {
+			addOutputs(this.canonicalOutputs(red_seq, red_seq, this.canon_red_index, 0), this.red_outs);
+			for (int ssl = (seqLen-2); ssl >= 0; ssl--) {
+				this.ref_outs.add(this.referenceOf(red_seq.get(ssl)));
+			}
+			if (seqLen > 1) {
+				this.ref_outs.add(0);
+			}
+		} else {
+			addOutputs(red_seq, this.red_outs);
+		}
 
 		for (int ssl = (seqLen-2); ssl >= 0; ssl--) // Iterate from the second last element to the first one
 		{
 			int nid = 0; // node id, initialised to root node
 
-			// Add (ssl+1)th element of raw_seq to raw_outs and retain index (the continuation index)
-			raw_outs.add(raw_seq.get(ssl+1));
-			int cid = raw_outs.size() - 1;
+			// Continuation index of the (ssl+1)th element
+			int cid = first_cid + (seqLen-2-ssl);
 
 			// Add continuation to the current node
-			this.getNode(nid).addContinuation(cid);
+			this.addContinuation(nid, cid);
 
 			// Add the first note of the training sequence as a continuation from the root node
 			if (ssl == 0){
-				raw_outs.add(raw_seq.get(0));
-				this.getNode(nid).addContinuation(raw_outs.size()-1);
+				this.addContinuation(nid, cid+1);
 			}
 
 			int eid = ssl;
 			int depth = 0;
+			int ref = this.referenceOf(red_seq.get(ssl));
 
 			while (eid >= 0 && depth < this.order)
 			{
-				Boolean found = false;
+				int next = this.findLink(nid, red_seq.get(eid), ref);
 
-				// Find next node
-				for (int lid = 0; lid < this.getNode(nid).getNumLinks(); lid++)
+				if (next >= 0)
 				{
-					if (this.compareReductions(this.getNode(this.getNode(nid).getLink(lid)).getReduction(), red_seq.get(eid)))
-					{
-						found = true;
-						nid = this.getNode(nid).getLink(lid);
-						this.getNode(nid).addContinuation(cid);
-						break;
-					}
+					nid = next;
+					this.addContinuation(nid, cid);
 				}
-
-				// If node was not found, need to create a new one
-				if (! found)
+				else
 				{
+					// If node was not found, need to create a new one
 					VmmTreeNode n = new VmmTreeNode();
-					n.setReduction(red_seq.get(eid));
-					n.addContinuation(cid);
+					if (this.canonical) {
+						n.setReduction(shifted(red_seq.get(eid), this.canon_red_index, -ref, this.canon_modulus));
+					} else {
+						n.setReduction(red_seq.get(eid));
+					}
 					this.addNode(n);
 
 					// add link from the current node to the newly created one
 					int endNodeIdx = this.getSize()-1;
-					this.getNode(nid).addLink(endNodeIdx);
+					this.writableNode(nid).addLink(endNodeIdx);
 					nid = endNodeIdx;
+					this.addContinuation(nid, cid);
 				}
 				depth++;
 				eid--;
@@ -196,6 +654,97 @@ public class VmmTree extends Object implements Serializable
 		}
 	}
 
+	private void addContinuation(int node_id, int cid)
+	{
+		this.writableNode(node_id).addContinuation(cid);
+	}
+
+	/*
+	 * The node at node_id with its distinct outputs counted. Outputs are only counted for
+	 * nodes that are queried (by score, top_k and beam_search), so learning does not pay for
+	 * them: the continuations added since the node was last queried are counted now.
+	 */
+	private VmmTreeNode countedNode(int node_id)
+	{
+		VmmTreeNode n = this.getNode(node_id);
+		if (n.getNumCounted() < n.getNumContinuations()) {
+			n = this.writableNode(node_id);
+			this.indexOutputs();
+			for (int c = n.getNumCounted(); c < n.getNumContinuations(); c++) {
+				n.countOutput(this.outputId(n.getContinuation(c), node_id));
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * Id of the output of continuation cid as seen from node node_id: equal outputs have equal ids.
+	 * At the root of a canonical tree outputs are absolute, elsewhere they are relative.
+	 */
+	private int outputId(int cid, int node_id)
+	{
+		return (this.canonical && node_id == 0) ? this.root_output_ids.get(cid) : this.output_ids.get(cid);
+	}
+
+	/*
+	 * Give ids to the raw outputs that do not have one yet.
+	 */
+	private void indexOutputs()
+	{
+		for (int cid = this.output_ids.size(); cid < this.raw_outs.size(); cid++) {
+			this.output_ids.add(this.internOutput(this.raw_outs.get(cid)));
+			if (this.canonical) {
+				this.root_output_ids.add(this.internOutput(this.rawOutput(cid, 0, 0)));
+			}
+		}
+	}
+
+	private int internOutput(ArrayList<Integer> output)
+	{
+		Integer id = this.output_index.get(output);
+		if (id == null) {
+			id = this.output_index.size();
+			this.output_index.put(output, id);
+		}
+		return id;
+	}
+
+	static ArrayList<Integer> toList(int[] data, int offset, int len)
+	{
+		ArrayList<Integer> list = new ArrayList<Integer>(len);
+		for (int i = offset; i < offset + len; i++) {
+			list.add(data[i]);
+		}
+		return list;
+	}
+
+	/*
+	 * Models saved before reductions were stored with the raw outputs have no red_outs,
+	 * so give them an empty reduction slot for each raw output.
+	 * Output ids are not saved: they are rebuilt when nodes are queried.
+	 * The loaded nodes are owned by this tree.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		if (this.red_outs == null) {
+			this.red_outs = new ArrayList<ArrayList<Integer>>(this.raw_outs.size());
+			for (int i = 0; i < this.raw_outs.size(); i++) {
+				this.red_outs.add(null);
+			}
+		}
+		if (this.ref_outs == null) {
+			this.ref_outs = new ArrayList<Integer>();
+		}
+		this.output_index = new HashMap<ArrayList<Integer>, Integer>();
+		this.output_ids = new ArrayList<Integer>();
+		this.root_output_ids = new ArrayList<Integer>();
+		this.node_owner = new Object();
+		for (VmmTreeNode n : this.nodes) {
+			n.setOwner(this.node_owner);
+		}
+	}
+
 	/**
 	 * Compare two reduction ArrayLists
 	 * @param a
@@ -205,50 +754,201 @@ public class VmmTree extends Object implements Serializable
 	private boolean compareReductions(ArrayList<Integer> a, ArrayList<Integer> b) {
 		if (a.size() != b.size()) return false;
 		for (int i = 0; i < a.size(); i++) {
-			if (a.get(i) != b.get(i)) return false;
+			if (!a.get(i).equals(b.get(i))) return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Print the VMM tree to output
+	 * Walk the VMM tree depth first (without recursion), passing each node to a visitor.
+	 * Nodes are numbered in the order they are walked, which is used for paging.
+	 * @param visitor
+	 * @param max_depth nodes deeper than this are skipped (0 or less for no limit)
+	 * @param first_node number of walked nodes to skip before visiting starts
+	 * @param max_nodes maximum number of nodes to visit (0 or less for no limit)
+	 * @return true if the walk stopped because max_nodes was reached and there are more nodes
 	 */
-	public String toString()
+	public boolean walk(VmmTreeVisitor visitor, int max_depth, int first_node, int max_nodes) throws IOException
 	{
-		String s = new String();
-		if (this.getSize() > 0) {
-			// First, print out raw_outs
-			s += "Raw (" + this.raw_outs.size() + " raw outputs):\n";
-			for (int i=0; i < this.raw_outs.size(); i++) {
-				s += (i + ": " + this.raw_outs.get(i).toString() + "\n");
+		if (this.getSize() == 0) {
+			return false;
+		}
+
+		// Each stack entry is {node_id, parent_id, depth}
+		ArrayList<int[]> stack = new ArrayList<int[]>();
+		stack.add(new int[]{0, -1, 0});
+		int walked = 0;
+		int visited = 0;
+		while (stack.size() > 0) {
+			int[] entry = stack.remove(stack.size()-1);
+			if (max_nodes > 0 && visited >= max_nodes) {
+				return true;
 			}
-			s += "Tree (" + this.nodes.size() + " nodes):\n";
-			VmmTreeNode n = this.getNode(0);
-			s += n.toString() + "\n";
-			String indent_string = "";
-			for (int i = 0; i < n.getNumLinks(); i++) {
-				s += get_tree_string(this.getNode(n.getLink(i)), indent_string);
+			VmmTreeNode n = this.getNode(entry[0]);
+			if (walked >= first_node) {
+				visitor.visitNode(entry[0], entry[1], entry[2], n);
+				visited++;
+			}
+			walked++;
+			if (max_depth <= 0 || entry[2] < max_depth) {
+				// Push links in reverse so that they are walked in the order they were added
+				for (int i = n.getNumLinks()-1; i >= 0; i--) {
+					stack.add(new int[]{n.getLink(i), entry[0], entry[2]+1});
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write the tree as indented text, one node per line.
+	 * @return true if there are more nodes after this page
+	 */
+	public boolean writeTree(final Writer out, int max_depth, int first_node, int max_nodes) throws IOException
+	{
+		return this.walk(new VmmTreeVisitor() {
+			public void visitNode(int node_id, int parent_id, int depth, VmmTreeNode n) throws IOException {
+				for (int i = 0; i < depth; i++) {
+					out.write("  ");
+				}
+				n.write(out);
+				out.write('\n');
 			}
+		}, max_depth, first_node, max_nodes);
+	}
+
+	/**
+	 * Write the raw outputs as text, one per line.
+	 * @param out
+	 * @param first index of the first raw output to write
+	 * @param max maximum number of raw outputs to write (0 or less for no limit)
+	 * @return true if there are more raw outputs after this page
+	 */
+	public boolean writeRawOuts(Writer out, int first, int max) throws IOException
+	{
+		int end = this.raw_outs.size();
+		if (max > 0 && first + max < end) {
+			end = first + max;
+		}
+		for (int i = first; i < end; i++) {
+			out.write(i + ": " + this.raw_outs.get(i).toString() + "\n");
+		}
+		return end < this.raw_outs.size();
+	}
+
+	/**
+	 * Write the tree in Graphviz DOT format.
+	 * @return true if the output was truncated by max_nodes
+	 */
+	public boolean writeDot(final Writer out, int max_depth, int max_nodes) throws IOException
+	{
+		out.write("digraph VMM {\n");
+		out.write("  node [shape=box];\n");
+		boolean truncated = this.walk(new VmmTreeVisitor() {
+			public void visitNode(int node_id, int parent_id, int depth, VmmTreeNode n) throws IOException {
+				String label = (parent_id < 0) ? "root" : n.getReduction().toString();
+				out.write("  n" + node_id + " [label=\"" + label + "\\n" + n.getNumContinuations() + "\"];\n");
+				if (parent_id >= 0) {
+					out.write("  n" + parent_id + " -> n" + node_id + ";\n");
+				}
+			}
+		}, max_depth, 0, max_nodes);
+		out.write("}\n");
+		return truncated;
+	}
+
+	/**
+	 * Write the model as JSON: the raw outputs, the sequence starts and a flat list of nodes.
+	 * Links are given only by each node's parent, so a truncated export never refers to
+	 * nodes that are not in the list.
+	 * @return true if the node list was truncated by max_nodes
+	 */
+	public boolean writeJson(final Writer out, int max_depth, int max_nodes) throws IOException
+	{
+		out.write("{\"order\":" + this.order + ",\n");
+		if (this.canonical) {
+			// Outputs and node reductions below are stored relative to their reference values
+			out.write("\"canonical\":{\"red_index\":" + this.canon_red_index + ",\"raw_index\":" + this.canon_raw_index
+					+ ",\"modulus\":" + this.canon_modulus + ",\"ref_outs\":");
+			writeJsonList(out, this.ref_outs);
+			out.write("},\n");
+		}
+		out.write("\"raw_outs\":[");
+		for (int i = 0; i < this.raw_outs.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			writeJsonList(out, this.raw_outs.get(i));
+		}
+		out.write("],\n\"seq_starts\":[");
+		for (int i = 0; i < this.seq_starts.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			writeJsonList(out, this.seq_starts.get(i));
+		}
+		out.write("],\n\"nodes\":[");
+		boolean truncated = this.walk(new VmmTreeVisitor() {
+			private boolean first = true;
+			public void visitNode(int node_id, int parent_id, int depth, VmmTreeNode n) throws IOException {
+				out.write(first ? "\n" : ",\n");
+				first = false;
+				out.write("{\"id\":" + node_id + ",\"parent\":" + parent_id + ",\"depth\":" + depth + ",\"reduction\":");
+				writeJsonList(out, n.getReduction());
+				out.write(",\"continuations\":[");
+				for (int i = 0; i < n.getNumContinuations(); i++) {
+					if (i > 0) {
+						out.write(',');
+					}
+					out.write(Integer.toString(n.getContinuation(i)));
+				}
+				out.write("]}");
+			}
+		}, max_depth, 0, max_nodes);
+		out.write("],\n\"truncated\":" + truncated + "}\n");
+		return truncated;
+	}
+
+	private static void writeJsonList(Writer out, ArrayList<Integer> list) throws IOException
+	{
+		out.write('[');
+		for (int i = 0; i < list.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write(list.get(i).toString());
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Write the whole VMM (raw outputs and tree) as text.
+	 * @param out
+	 */
+	public void write(Writer out) throws IOException
+	{
+		if (this.getSize() > 0) {
+			out.write("Raw (" + this.raw_outs.size() + " raw outputs):\n");
+			this.writeRawOuts(out, 0, 0);
+			out.write("Tree (" + this.nodes.size() + " nodes):\n");
+			this.writeTree(out, 0, 0, 0);
 		}
 		else {
-			s = "Empty VMM tree";
+			out.write("Empty VMM tree");
 		}
-		return s;
 	}
 
 	/**
-	 * Print a VMM tree node to output
-	 * @param n
-	 * @param indent_string
+	 * Print the VMM tree to output
 	 */
-	private String get_tree_string(VmmTreeNode n, String indent_string)
+	public String toString()
 	{
-		String s = new String();
-		indent_string = indent_string + "  ";
-		s = indent_string + n.toString() + "\n";
-		for( int i=0; i< n.getNumLinks(); i++ ){
-			s += get_tree_string(this.getNode(n.getLink(i)), indent_string);
+		StringWriter s = new StringWriter();
+		try {
+			this.write(s);
+		} catch (IOException e) {
+			// StringWriter does not throw
 		}
-		return s;
+		return s.toString();
 	}
 }
@@ -15,8 +15,13 @@
     along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class VmmTreeNode extends Object implements Serializable
 {
@@ -29,6 +34,31 @@ public class VmmTreeNode extends Object implements Serializable
 	private ArrayList<Integer> links = new ArrayList<Integer>();
 	private ArrayList<Integer> continuations = new ArrayList<Integer>();
 
+	// Distinct outputs among the continuations, only counted for nodes that are queried (see VmmTree.countedNode)
+	private transient OutputCounts output_counts;
+
+	// Tree that may modify the node: a node shared with a snapshot is copied before it is modified (see VmmTree.snapshot)
+	private transient Object owner;
+
+	public VmmTreeNode()
+	{
+	}
+
+	/**
+	 * Copy constructor. The links, continuations and output counts are copied, the reduction
+	 * (which is never modified) is shared.
+	 * @param n
+	 */
+	public VmmTreeNode(VmmTreeNode n)
+	{
+		this.reduction = n.reduction;
+		this.links = new ArrayList<Integer>(n.links);
+		this.continuations = new ArrayList<Integer>(n.continuations);
+		if (n.output_counts != null) {
+			this.output_counts = new OutputCounts(n.output_counts);
+		}
+	}
+
 	public void addLink(int link)
 	{
 		links.add(link);
@@ -39,6 +69,55 @@ public class VmmTreeNode extends Object implements Serializable
 		continuations.add(continuation);
 	}
 
+	/**
+	 * Count the next continuation that has not been counted yet against its distinct output.
+	 * Continuations are counted in the order they were added.
+	 * @param output_id id of the continuation's output (equal outputs have equal ids)
+	 */
+	public void countOutput(int output_id)
+	{
+		if (output_counts == null) {
+			output_counts = new OutputCounts();
+		}
+		output_counts.add(output_id, continuations.get(output_counts.counted));
+	}
+
+	/**
+	 * @return the number of continuations that have been counted against their outputs
+	 */
+	public int getNumCounted()
+	{
+		return (output_counts == null) ? 0 : output_counts.counted;
+	}
+
+	public int getNumOutputs()
+	{
+		return (output_counts == null) ? 0 : output_counts.num_outputs;
+	}
+
+	public int getOutputCount(int index)
+	{
+		return output_counts.counts[index];
+	}
+
+	/**
+	 * @return the first continuation with the output at index
+	 */
+	public int getOutputContinuation(int index)
+	{
+		return output_counts.continuations[index];
+	}
+
+	Object getOwner()
+	{
+		return owner;
+	}
+
+	void setOwner(Object owner)
+	{
+		this.owner = owner;
+	}
+
 	public void setReduction(ArrayList<Integer> reduction)
 	{
 		this.reduction = reduction;
@@ -69,16 +148,75 @@ public class VmmTreeNode extends Object implements Serializable
 		return continuations.get(index);
 	}
 
-	public String toString() {
-		String s = new String();
-		s = "N, r=" + this.reduction.toString() + ", {";
+	/**
+	 * Write a one line description of the node (without newline) to a Writer.
+	 * @param out
+	 */
+	public void write(Writer out) throws IOException {
+		out.write("N, r=");
+		out.write(this.reduction.toString());
+		out.write(", {");
 		for (int i = 0; i < this.getNumContinuations(); i++) {
-			s = s + this.getContinuation(i);
-			if( i < this.getNumContinuations()-1) {
-				s = s + " ";
+			if (i > 0) {
+				out.write(' ');
+			}
+			out.write(Integer.toString(this.getContinuation(i)));
+		}
+		out.write('}');
+	}
+
+	public String toString() {
+		StringWriter s = new StringWriter();
+		try {
+			this.write(s);
+		} catch (IOException e) {
+			// StringWriter does not throw
+		}
+		return s.toString();
+	}
+
+	/*
+	 * Distinct outputs among the first counted continuations of a node: for each one its id,
+	 * count and first continuation.
+	 */
+	private static class OutputCounts {
+		int counted = 0;
+		int num_outputs = 0;
+		int[] ids = new int[4];
+		int[] counts = new int[4];
+		int[] continuations = new int[4];
+		HashMap<Integer, Integer> index = new HashMap<Integer, Integer>(); // output id to position in the arrays
+
+		OutputCounts() {
+		}
+
+		OutputCounts(OutputCounts c) {
+			this.counted = c.counted;
+			this.num_outputs = c.num_outputs;
+			this.ids = c.ids.clone();
+			this.counts = c.counts.clone();
+			this.continuations = c.continuations.clone();
+			this.index = new HashMap<Integer, Integer>(c.index);
+		}
+
+		void add(int output_id, int continuation) {
+			this.counted++;
+			Integer i = this.index.get(output_id);
+			if (i != null) {
+				this.counts[i]++;
+				return;
+			}
+			if (this.num_outputs == this.ids.length) {
+				int size = this.ids.length * 2;
+				this.ids = Arrays.copyOf(this.ids, size);
+				this.counts = Arrays.copyOf(this.counts, size);
+				this.continuations = Arrays.copyOf(this.continuations, size);
 			}
+			this.ids[this.num_outputs] = output_id;
+			this.counts[this.num_outputs] = 1;
+			this.continuations[this.num_outputs] = continuation;
+			this.index.put(output_id, this.num_outputs);
+			this.num_outputs++;
 		}
-		s = s + "}";
-		return s;
 	}
 }
@@ -0,0 +1,34 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+
+/*
+ * Callback used by VmmTree.walk to visit the nodes of a VMM tree one at a time,
+ * so that a model can be dumped or exported without building it all in memory.
+ */
+public interface VmmTreeVisitor
+{
+	/**
+	 * Visit a single node. Nodes are visited depth first, parents before children.
+	 * @param node_id index of the node in the tree (0 is the root)
+	 * @param parent_id index of the parent node, or -1 for the root
+	 * @param depth depth of the node (0 is the root)
+	 * @param n the node itself
+	 */
+	public void visitNode(int node_id, int parent_id, int depth, VmmTreeNode n) throws IOException;
+}
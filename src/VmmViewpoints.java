@@ -0,0 +1,222 @@
+/*
+    This file is part of VMM.
+
+    VMM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    VMM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * A multi-viewpoint VMM: one VmmTree per viewpoint (reduction function), all sharing
+ * a single store of raw outputs and sequence starts.
+ *
+ * Because every viewpoint tree is trained on the same sequences, a continuation index
+ * refers to the same raw output in every tree. Generation descends each viewpoint tree
+ * with its own history and draws from the continuations that all the matched contexts
+ * agree on.
+ */
+public class VmmViewpoints extends Object implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	Random randomGenerator = new Random();
+	private int order;
+	private ArrayList<ArrayList<Integer>> raw_outs = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<ArrayList<Integer>> seq_starts = new ArrayList<ArrayList<Integer>>();
+	private ArrayList<VmmTree> viewpoints = new ArrayList<VmmTree>();
+
+	/**
+	 * Constructor
+	 * @param order Maximum order (sets max depth of every viewpoint tree)
+	 * @param num_viewpoints Number of viewpoints
+	 */
+	public VmmViewpoints(int order, int num_viewpoints)
+	{
+		this.order = order;
+		for (int v = 0; v < num_viewpoints; v++) {
+			this.viewpoints.add(new VmmTree(order, this.raw_outs, this.seq_starts));
+		}
+	}
+
+	public int getOrder()
+	{
+		return order;
+	}
+
+	public int getNumViewpoints()
+	{
+		return viewpoints.size();
+	}
+
+	public VmmTree getViewpoint(int index)
+	{
+		return viewpoints.get(index);
+	}
+
+	/**
+	 * @return the total number of nodes in all the viewpoint trees
+	 */
+	public int getSize()
+	{
+		int size = 0;
+		for (VmmTree tree : this.viewpoints) {
+			size += tree.getSize();
+		}
+		return size;
+	}
+
+	public int getNumRawOuts()
+	{
+		return this.raw_outs.size();
+	}
+
+	/*
+	 * Learn one training sequence: the raw outputs are stored once and every viewpoint
+	 * tree is updated with its own reduction of the sequence.
+	 * @param red_seqs one reduction sequence per viewpoint, each the same length as raw_seq
+	 * @param raw_seq
+	 */
+	public void learn(ArrayList<ArrayList<ArrayList<Integer>>> red_seqs, ArrayList<ArrayList<Integer>> raw_seq)
+	{
+		this.seq_starts.add(raw_seq.get(0));
+		int first_cid = VmmTree.addOutputs(raw_seq, this.raw_outs);
+		for (int v = 0; v < this.viewpoints.size(); v++) {
+			this.viewpoints.get(v).learnContexts(red_seqs.get(v), first_cid);
+		}
+	}
+
+	/*
+	 * Learn from a packed sequence of events held in a single int array.
+	 * Each event is the reduction values of every viewpoint in turn (red_lens[v] values for
+	 * viewpoint v) followed by raw_len raw values. As in VmmTree.learn(int[], ...), the sequence
+	 * is converted to lists once and learnt as lists.
+	 */
+	public void learn(int[] data, int offset, int num_events, int[] red_lens, int raw_len)
+	{
+		int[] red_offsets = new int[red_lens.length];
+		int stride = 0;
+		for (int v = 0; v < red_lens.length; v++) {
+			red_offsets[v] = stride;
+			stride += red_lens[v];
+		}
+		int raw_offset = stride;
+		stride += raw_len;
+
+		ArrayList<ArrayList<ArrayList<Integer>>> red_seqs = new ArrayList<ArrayList<ArrayList<Integer>>>(red_lens.length);
+		for (int v = 0; v < red_lens.length; v++) {
+			ArrayList<ArrayList<Integer>> red_seq = new ArrayList<ArrayList<Integer>>(num_events);
+			for (int i = 0; i < num_events; i++) {
+				red_seq.add(VmmTree.toList(data, offset + i*stride + red_offsets[v], red_lens[v]));
+			}
+			red_seqs.add(red_seq);
+		}
+		ArrayList<ArrayList<Integer>> raw_seq = new ArrayList<ArrayList<Integer>>(num_events);
+		for (int i = 0; i < num_events; i++) {
+			raw_seq.add(VmmTree.toList(data, offset + i*stride + raw_offset, raw_len));
+		}
+
+		this.learn(red_seqs, raw_seq);
+	}
+
+	/**
+	 * Make a copy of the model that is not affected by further learning, e.g. to save it
+	 * on another thread. The viewpoint trees of the copy share its copy of the raw outputs.
+	 * @return the copy
+	 */
+	public VmmViewpoints snapshot()
+	{
+		VmmViewpoints copy = new VmmViewpoints(this.order, 0);
+		copy.raw_outs.addAll(this.raw_outs);
+		copy.seq_starts.addAll(this.seq_starts);
+		for (VmmTree tree : this.viewpoints) {
+			copy.viewpoints.add(tree.snapshot(copy.raw_outs, copy.seq_starts));
+		}
+		return copy;
+	}
+
+	/*
+	 * Output a random sequence start.
+	 */
+	public ArrayList<Integer> gen_start() {
+		int rand_choice = randomGenerator.nextInt(this.seq_starts.size());
+		return this.seq_starts.get(rand_choice);
+	}
+
+	/*
+	 * Draw a single Markov output combining all the viewpoints.
+	 * Each viewpoint tree is descended with its own history. The output is drawn from the
+	 * continuations shared by every matched node; if there are none, it is drawn from the
+	 * most specific matched node (the one with the fewest continuations).
+	 * @param histories one history per viewpoint
+	 * @param gen_order maximum order, silently reduced to the model order
+	 */
+	public ArrayList<Integer> generate(ArrayList<ArrayList<ArrayList<Integer>>> histories, int gen_order) {
+
+		if (gen_order > this.order) {
+			gen_order = this.order;
+		}
+
+		ArrayList<VmmTreeNode> matched = new ArrayList<VmmTreeNode>(this.viewpoints.size());
+		VmmTreeNode most_specific = null;
+		for (int v = 0; v < this.viewpoints.size(); v++) {
+			VmmTree tree = this.viewpoints.get(v);
+			VmmTreeNode n = tree.getNode(tree.descend(histories.get(v), gen_order));
+			matched.add(n);
+			if (most_specific == null || n.getNumContinuations() < most_specific.getNumContinuations()) {
+				most_specific = n;
+			}
+		}
+
+		ArrayList<Integer> shared = this.intersectContinuations(matched);
+		if (shared.size() > 0) {
+			return this.raw_outs.get(shared.get(randomGenerator.nextInt(shared.size())));
+		}
+		int rand_choice = randomGenerator.nextInt(most_specific.getNumContinuations());
+		return this.raw_outs.get(most_specific.getContinuation(rand_choice));
+	}
+
+	/*
+	 * Continuation indices present in every node.
+	 * Continuations are added to a node in increasing index order, so the lists are merged.
+	 */
+	private ArrayList<Integer> intersectContinuations(ArrayList<VmmTreeNode> matched) {
+		VmmTreeNode first = matched.get(0);
+		ArrayList<Integer> shared = new ArrayList<Integer>(first.getNumContinuations());
+		for (int i = 0; i < first.getNumContinuations(); i++) {
+			shared.add(first.getContinuation(i));
+		}
+		for (int m = 1; m < matched.size() && shared.size() > 0; m++) {
+			VmmTreeNode n = matched.get(m);
+			ArrayList<Integer> merged = new ArrayList<Integer>();
+			int i = 0;
+			int j = 0;
+			while (i < shared.size() && j < n.getNumContinuations()) {
+				int a = shared.get(i);
+				int b = n.getContinuation(j);
+				if (a == b) {
+					merged.add(a);
+					i++;
+					j++;
+				} else if (a < b) {
+					i++;
+				} else {
+					j++;
+				}
+			}
+			shared = merged;
+		}
+		return shared;
+	}
+}